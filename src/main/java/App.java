@@ -1,18 +1,376 @@
-import com.kpsychas.lib.Matcher;
 import com.kpsychas.lib.Pattern;
 import com.kpsychas.lib.PatternSyntaxException;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recursive grep over directory trees.
+ *
+ * Files are decoded as UTF-8 unless another charset is given, input that is
+ * malformed in it matches as U+FFFD. Matching lines are printed as the
+ * bytes they have in the file and offsets are byte offsets in the file.
+ * Directories are walked in parallel on a work stealing pool, output of
+ * every file is printed at once so lines of different files do not
+ * interleave.
+ */
 public class App {
+    private static final String USAGE =
+            "Usage: App [OPTION]... PATTERN PATH...\n" +
+            "Search for PATTERN in the files under each PATH.\n" +
+            "\n" +
+            "  -c, --count               print only the number of matching lines of every\n" +
+            "                            file, or of matches with -z\n" +
+            "  -l, --files-with-matches  print only the names of files with a match\n" +
+            "  -b, --byte-offset         print the offset of the first match of every line\n" +
+            "  -i, --ignore-case         match letters of either case\n" +
+            "  -z, --whole-file          match over whole files instead of single lines,\n" +
+            "                            prints the start and end offset of every match\n" +
+            "  -s, --stats               print throughput statistics on standard error\n" +
+            "  -j, --threads N           use N threads, number of processors by default\n" +
+            "      --charset NAME        decode files with charset NAME, UTF-8 by default\n";
+
+    // matches found by one call of Pattern.findAll with -z
+    private static final int BATCH = 1024;
+
+    enum Mode {
+        LINES, COUNT, FILES
+    }
+
+    private final Pattern pattern;
+    private final Mode mode;
+    private final boolean offsets;
+    private final boolean wholeFile;
+    private final Charset charset;
+
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicBoolean matched = new AtomicBoolean();
+    private final AtomicBoolean failed = new AtomicBoolean();
+
+    App(Pattern pattern, Mode mode, boolean offsets, boolean wholeFile, Charset charset) {
+        this.pattern = pattern;
+        this.mode = mode;
+        this.offsets = offsets;
+        this.wholeFile = wholeFile;
+        this.charset = charset;
+    }
+
     public static void main(String[] args) {
-        try {
-            Pattern p = Pattern.compile("((a*)b)+[^c]([a-b])?");
-            p.printPattern();
+        Mode mode = Mode.LINES;
+        boolean offsets = false, wholeFile = false, stats = false;
+        int flags = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        Charset charset = StandardCharsets.UTF_8;
+        List<String> operands = new ArrayList<>();
 
-            Matcher m = p.matcher("aabaabab");
-            m.printMatch();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!operands.isEmpty() || !arg.startsWith("-")) {
+                operands.add(arg);
+                continue;
+            }
+            switch (arg) {
+                case "-c": case "--count":
+                    mode = Mode.COUNT;
+                    break;
+                case "-l": case "--files-with-matches":
+                    mode = Mode.FILES;
+                    break;
+                case "-b": case "--byte-offset":
+                    offsets = true;
+                    break;
+                case "-i": case "--ignore-case":
+                    flags |= Pattern.CASE_INSENSITIVE;
+                    break;
+                case "-z": case "--whole-file":
+                    wholeFile = true;
+                    break;
+                case "-s": case "--stats":
+                    stats = true;
+                    break;
+                case "-j": case "--threads":
+                    try {
+                        threads = Integer.parseInt(args[++i]);
+                    } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                        exitWithUsage("Option " + arg + " needs a number");
+                    }
+                    break;
+                case "--charset":
+                    try {
+                        charset = Charset.forName(args[++i]);
+                    } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+                        exitWithUsage("Option " + arg + " needs a supported charset");
+                    }
+                    break;
+                default:
+                    exitWithUsage("Unknown option " + arg);
+            }
+        }
+        if (operands.size() < 2) {
+            exitWithUsage("Missing pattern or path");
+        }
 
+        Pattern p = null;
+        try {
+            p = Pattern.compile(operands.get(0), flags);
         } catch (PatternSyntaxException e) {
-            e.printStackTrace();
+            System.err.println("App: " + e.getMessage());
+            System.exit(2);
+        }
+
+        App app = new App(p, mode, offsets, wholeFile, charset);
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+        for (String path : operands.subList(1, operands.size())) {
+            pool.invoke(app.new Walk(Paths.get(path)));
+        }
+        pool.shutdown();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        if (stats) {
+            System.err.printf("%d files, %d bytes in %.3f s (%.2f MB/s, %.1f files/s)%n",
+                    app.files.get(), app.bytes.get(), seconds,
+                    app.bytes.get() / seconds / 1e6, app.files.get() / seconds);
+        }
+        System.exit(app.failed.get() ? 2 : (app.matched.get() ? 0 : 1));
+    }
+
+    private static void exitWithUsage(String message) {
+        System.err.println("App: " + message);
+        System.err.print(USAGE);
+        System.exit(2);
+    }
+
+    /* Searches a file or forks a task for every entry of a directory */
+    class Walk extends RecursiveAction {
+        private final Path path;
+
+        Walk(Path path) {
+            this.path = path;
+        }
+
+        @Override
+        protected void compute() {
+            if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                List<Walk> tasks = new ArrayList<>();
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
+                    for (Path entry : entries) {
+                        tasks.add(new Walk(entry));
+                    }
+                } catch (IOException e) {
+                    error(e);
+                }
+                invokeAll(tasks);
+            } else if (Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)) {
+                try {
+                    search(path);
+                } catch (IOException e) {
+                    error(e);
+                }
+            } else if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                error(new NoSuchFileException(path.toString()));
+            }
+        }
+
+        private void error(IOException e) {
+            failed.set(true);
+            System.err.println("App: " + path + ": " + e);
+        }
+    }
+
+    private void search(Path path) throws IOException {
+        byte[] data = Files.readAllBytes(path);
+        files.incrementAndGet();
+        bytes.addAndGet(data.length);
+
+        String text = newDecoder().decode(ByteBuffer.wrap(data)).toString();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int count = wholeFile ? searchFile(path, data, text, out) : searchLines(path, data, text, out);
+
+        if (count > 0) {
+            matched.set(true);
+        }
+        if (mode == Mode.COUNT) {
+            print(out, path + ":" + count + "\n");
+        } else if (mode == Mode.FILES && count > 0) {
+            print(out, path + "\n");
+        }
+        if (out.size() > 0) {
+            synchronized (System.out) {
+                out.writeTo(System.out);
+                System.out.flush();
+            }
+        }
+    }
+
+    /* Decoder that replaces malformed and unmappable input with U+FFFD */
+    private CharsetDecoder newDecoder() {
+        return charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /* Writes names, offsets and separators in the platform charset */
+    private static void print(ByteArrayOutputStream out, String s) {
+        byte[] b = s.getBytes();
+        out.write(b, 0, b.length);
+    }
+
+    /* Returns the number of matching lines */
+    private int searchLines(Path path, byte[] data, String text, ByteArrayOutputStream out) {
+        int count = 0;
+        int lineStart = 0;
+        ByteOffsets bytes = new ByteOffsets(data);
+        while (lineStart < text.length()) {
+            int lineEnd = text.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                lineEnd = text.length();
+            }
+            String line = text.substring(lineStart, lineEnd);
+            int start = pattern.find(line);
+            if (start >= 0) {
+                count++;
+                if (mode == Mode.FILES) break;
+                if (mode == Mode.LINES) {
+                    long from = bytes.of(lineStart);
+                    print(out, offsets ? path + ":" + bytes.of(lineStart + start) + ":" : path + ":");
+                    long to = bytes.of(lineEnd);
+                    out.write(data, (int) from, (int) (to - from));
+                    out.write('\n');
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+        return count;
+    }
+
+    /* Returns the number of matches in the whole file */
+    private int searchFile(Path path, byte[] data, String text, ByteArrayOutputStream out) {
+        if (mode == Mode.FILES) {
+            // only the first match is needed to list a file
+            return (pattern.find(text) >= 0) ? 1 : 0;
+        }
+        // matches are collected in batches without an object per match
+        IntBuffer matches = IntBuffer.allocate(2 * BATCH);
+        ByteOffsets bytes = new ByteOffsets(data);
+        int count = 0;
+        int from = 0;
+        while (true) {
+            matches.clear();
+            int n = pattern.findAll(text, from, matches);
+            count += n;
+            if (mode == Mode.LINES) {
+                for (int k = 0; k < 2 * n; k += 2) {
+                    print(out, path + ":" + bytes.of(matches.get(k)) + ":" + bytes.of(matches.get(k + 1)) + "\n");
+                }
+            }
+            if (n < BATCH) break;
+            int start = matches.get(2 * n - 2), end = matches.get(2 * n - 1);
+            from = (end == start) ? end + 1 : end;
+            if (from > text.length()) break;
+        }
+        return count;
+    }
+
+    /*
+     * Byte offsets in the file of character indexes of its decoded text.
+     * The file is decoded again one character at a time and the offset of
+     * a character is where the decoder stopped before it. Malformed input is
+     * reported rather than replaced, so that it is skipped by the length the
+     * decoder gives it and counted as the one U+FFFD it is in the text.
+     * Indexes are asked for in increasing order, so every call only decodes
+     * the characters after the previous one.
+     */
+    private class ByteOffsets {
+        private final ByteBuffer in;
+        private final CharsetDecoder decoder = charset.newDecoder();
+        private final CharBuffer out = CharBuffer.allocate(2);
+        private final int first;
+        private int index = 0;
+        private boolean ended = false;
+
+        ByteOffsets(byte[] data) {
+            in = ByteBuffer.wrap(data);
+            first = firstOffset(data);
+        }
+
+        long of(int i) {
+            if (i < index) {
+                decoder.reset();
+                in.position(0);
+                index = 0;
+                ended = false;
+            }
+            if (i == 0) {
+                return first;
+            }
+            while (index < i && decodeNext()) {
+            }
+            return in.position();
+        }
+
+        /* Decodes the next character or surrogate pair, false at the end of input */
+        private boolean decodeNext() {
+            out.clear();
+            out.limit(1);
+            CoderResult result = decoder.decode(in, out, ended);
+            if (result.isOverflow() && out.position() == 0) {
+                // a surrogate pair needs room for both
+                out.limit(2);
+                result = decoder.decode(in, out, ended);
+            }
+            if (out.position() > 0) {
+                // malformed input after it is reported again on the next call
+                index += out.position();
+                return true;
+            }
+            if (result.isError()) {
+                in.position(in.position() + result.length());
+                index++;
+                return true;
+            }
+            if (!ended && in.hasRemaining()) {
+                // an incomplete sequence is left at the end
+                ended = true;
+                return decodeNext();
+            }
+            return false;
+        }
+
+        /* Offset of the first character, given one byte at a time to skip a byte order mark */
+        private int firstOffset(byte[] data) {
+            CharsetDecoder d = charset.newDecoder();
+            ByteBuffer bytes = ByteBuffer.wrap(data, 0, 0);
+            CharBuffer chars = CharBuffer.allocate(2);
+            while (bytes.limit() < data.length) {
+                int start = bytes.position();
+                bytes.limit(bytes.limit() + 1);
+                if (d.decode(bytes, chars, false).isError() || chars.position() > 0) {
+                    return start;
+                }
+            }
+            return bytes.position();
         }
     }
 }
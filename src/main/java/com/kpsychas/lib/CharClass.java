@@ -0,0 +1,188 @@
+/*
+    Copyright (C) 2017  Konstantinos Psychas <kpsychas@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.kpsychas.lib;
+
+import java.util.Arrays;
+
+/*
+ * Immutable set of code points used by compiled programs.
+ * The set is kept as an inversion list, a sorted array of boundaries where
+ * ranges[2k] is the first code point of a range and ranges[2k+1] the first
+ * one after it, so membership is a binary search and wide or negated
+ * ranges take a few ints. ASCII is also kept as a 128 bit map, most tests
+ * never reach the search.
+ * Classes are interned and shared between all compiled programs.
+ */
+final class CharClass {
+    static final int MAX_CODE_POINT = Character.MAX_CODE_POINT + 1;
+
+    private static final Interner<CharClass> interned = new Interner<>();
+    private static final int[] NONE = new int[0];
+
+    private final long lo;
+    private final long hi;
+    final int[] ranges;
+    private final int hash;
+
+    private CharClass(int[] ranges) {
+        long lo = 0, hi = 0;
+        for (int k = 0; k < ranges.length && ranges[k] < 128; k += 2) {
+            int end = Math.min(ranges[k + 1], 128);
+            for (int c = ranges[k]; c < end; c++) {
+                if (c < 64) {
+                    lo |= 1L << c;
+                } else {
+                    hi |= 1L << (c - 64);
+                }
+            }
+        }
+        this.lo = lo;
+        this.hi = hi;
+        this.ranges = ranges;
+        this.hash = Arrays.hashCode(ranges);
+    }
+
+    static CharClass of(Pattern.RangeNode range) {
+        return new CharClass(range.isNeg ? complement(range.ranges) : range.ranges);
+    }
+
+    static CharClass of(int c) {
+        return new CharClass(new int[]{c, c + 1});
+    }
+
+    static CharClass empty() {
+        return new CharClass(NONE);
+    }
+
+    /**
+     * Returns the class of characters contained in this class or other.
+     */
+    CharClass union(CharClass other) {
+        return new CharClass(union(ranges, other.ranges));
+    }
+
+    /**
+     * Returns the inversion list of code points in a or b.
+     */
+    static int[] union(int[] a, int[] b) {
+        if (b.length == 2 && (a.length == 0 || b[0] > a[a.length - 1])) {
+            // a single range after all others, as ranges are usually written
+            int[] out = Arrays.copyOf(a, a.length + 2);
+            out[a.length] = b[0];
+            out[a.length + 1] = b[1];
+            return out;
+        }
+        int[] out = new int[a.length + b.length];
+        int n = 0, i = 0, j = 0;
+        while (i < a.length || j < b.length) {
+            // take the range that starts first and merge all that touch it
+            int start, end;
+            if (j >= b.length || (i < a.length && a[i] <= b[j])) {
+                start = a[i];
+                end = a[i + 1];
+                i += 2;
+            } else {
+                start = b[j];
+                end = b[j + 1];
+                j += 2;
+            }
+            if (n > 0 && start <= out[n - 1]) {
+                out[n - 1] = Math.max(out[n - 1], end);
+            } else {
+                out[n++] = start;
+                out[n++] = end;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    /**
+     * Returns the inversion list of code points not in a.
+     */
+    static int[] complement(int[] a) {
+        // toggling a boundary at 0 and at the end flips every range
+        int[] out = new int[a.length + 2];
+        int n = 0;
+        if (a.length == 0 || a[0] != 0) {
+            out[n++] = 0;
+        }
+        for (int k = (a.length > 0 && a[0] == 0) ? 1 : 0; k < a.length; k++) {
+            out[n++] = a[k];
+        }
+        if (n > 0 && out[n - 1] == MAX_CODE_POINT) {
+            n--;
+        } else {
+            out[n++] = MAX_CODE_POINT;
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    /**
+     * Returns true if code point c is in the inversion list.
+     */
+    static boolean contains(int[] ranges, int c) {
+        int k = Arrays.binarySearch(ranges, c);
+        // a boundary at an even index starts a range, otherwise c is
+        // inside when an odd number of boundaries are before it
+        return (k >= 0) ? (k & 1) == 0 : ((-k - 1) & 1) == 1;
+    }
+
+    /**
+     * Returns true if the class contains a code point in [from..to].
+     */
+    boolean intersects(int from, int to) {
+        if (contains(ranges, from)) return true;
+        // otherwise a range has to start after from
+        int k = Arrays.binarySearch(ranges, from + 1);
+        if (k < 0) k = -k - 1;
+        if ((k & 1) == 1) k++;
+        return k < ranges.length && ranges[k] <= to;
+    }
+
+    /**
+     * Returns the shared instance of a class equal to cc.
+     */
+    static CharClass intern(CharClass cc) {
+        return interned.intern(cc);
+    }
+
+    long footprint() {
+        return Pattern.align(Pattern.OBJECT_HEADER + 2 * 8 + Pattern.REFERENCE + 4) +
+                Pattern.align(Pattern.ARRAY_HEADER + 4L * ranges.length);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof CharClass)) return false;
+        return Arrays.equals(ranges, ((CharClass) o).ranges);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    boolean contains(int c) {
+        if (c < 64) {
+            return c >= 0 && (lo & (1L << c)) != 0;
+        } else if (c < 128) {
+            return (hi & (1L << (c - 64))) != 0;
+        }
+        return contains(ranges, c);
+    }
+}
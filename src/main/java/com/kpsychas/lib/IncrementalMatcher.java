@@ -0,0 +1,178 @@
+/*
+    Copyright (C) 2017  Konstantinos Psychas <kpsychas@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.kpsychas.lib;
+
+/**
+ * Matches input that arrives piece by piece, such as text typed one key
+ * at a time, against a pattern anchored at both ends.
+ *
+ * The matcher keeps the threads of the compiled program alive between
+ * calls, so appending costs time proportional to the characters appended
+ * and not to the whole input. After every append it tells whether the
+ * input so far is a match, whether more input could still make it one
+ * (hitEnd) and whether no input can (isDead).
+ *
+ * A State taken with snapshot holds only the thread list, restoring it
+ * undoes every append made since, which is how a backspace is handled
+ * without matching the input again.
+ */
+public final class IncrementalMatcher {
+    private final Program program;
+    private final Program.Threads threads;
+    // threads after the pending high surrogate is taken as a character of
+    // its own, used to answer queries while the pair is incomplete
+    private final Program.Threads scratch;
+    private int length;
+    private char pending;
+
+    IncrementalMatcher(Program program) {
+        this.program = program;
+        this.threads = new Program.Threads(program);
+        this.scratch = new Program.Threads(program);
+    }
+
+    /**
+     * Appends a character. A high surrogate is held back until the next
+     * character shows whether it starts a surrogate pair.
+     */
+    public IncrementalMatcher append(char c) {
+        if (pending != 0) {
+            char high = pending;
+            pending = 0;
+            if (Character.isLowSurrogate(c)) {
+                threads.step(Character.toCodePoint(high, c));
+                length += 2;
+                return this;
+            }
+            threads.step(high);
+            length++;
+        }
+        if (Character.isHighSurrogate(c)) {
+            pending = c;
+        } else {
+            threads.step(c);
+            length++;
+        }
+        return this;
+    }
+
+    /**
+     * Appends every character of the sequence.
+     */
+    public IncrementalMatcher append(CharSequence seq) {
+        for (int i = 0; i < seq.length(); i++) {
+            append(seq.charAt(i));
+        }
+        return this;
+    }
+
+    /**
+     * Returns the number of characters appended since the matcher was
+     * created or reset.
+     */
+    public int length() {
+        return (pending != 0) ? length + 1 : length;
+    }
+
+    /**
+     * Returns true if the pattern matches all the input appended so far.
+     */
+    public boolean isMatched() {
+        return current().isMatched();
+    }
+
+    /**
+     * Returns true if appending more input could make the pattern match,
+     * or keep matching, the whole input.
+     */
+    public boolean hitEnd() {
+        if (current().isWaiting()) return true;
+        // a pending high surrogate may still become a pair
+        return pending != 0 && threads.acceptsAny(Character.toCodePoint(pending, Character.MIN_LOW_SURROGATE),
+                Character.toCodePoint(pending, Character.MAX_LOW_SURROGATE));
+    }
+
+    /**
+     * Returns true if the input so far is not a match and no input appended
+     * to it can make one. Only a snapshot or reset brings the matcher back.
+     */
+    public boolean isDead() {
+        return !isMatched() && !hitEnd();
+    }
+
+    /**
+     * Forgets all input.
+     */
+    public IncrementalMatcher reset() {
+        threads.reset();
+        length = 0;
+        pending = 0;
+        return this;
+    }
+
+    /**
+     * Returns the state of the matcher after the input appended so far.
+     */
+    public State snapshot() {
+        return new State(program, threads.save(), length, pending);
+    }
+
+    /**
+     * Returns the matcher to a state taken from a matcher of the same
+     * pattern.
+     */
+    public IncrementalMatcher restore(State state) {
+        if (state.program != program) {
+            throw new IllegalArgumentException("State of another pattern");
+        }
+        threads.restore(state.threads);
+        length = state.length;
+        pending = state.pending;
+        return this;
+    }
+
+    private Program.Threads current() {
+        if (pending == 0) return threads;
+        scratch.restore(threads.save());
+        scratch.step(pending);
+        return scratch;
+    }
+
+    /**
+     * Immutable state of an IncrementalMatcher.
+     */
+    public static final class State {
+        private final Program program;
+        private final int[] threads;
+        private final int length;
+        private final char pending;
+
+        private State(Program program, int[] threads, int length, char pending) {
+            this.program = program;
+            this.threads = threads;
+            this.length = length;
+            this.pending = pending;
+        }
+
+        /**
+         * Returns the number of characters appended when the state was taken.
+         */
+        public int length() {
+            return (pending != 0) ? length + 1 : length;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+    Copyright (C) 2017  Konstantinos Psychas <kpsychas@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.kpsychas.lib;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Interner:
+ * table of shared instances that are held weakly, an instance is dropped
+ * once no pattern refers to it. The table is a ConcurrentHashMap so that
+ * threads compiling patterns in parallel do not wait on each other.
+ */
+final class Interner<T> {
+    private final ConcurrentHashMap<Ref<T>, Ref<T>> table = new ConcurrentHashMap<>();
+    private final ReferenceQueue<T> cleared = new ReferenceQueue<>();
+
+    /**
+     * Returns the shared instance equal to value, value itself if there is
+     * none yet.
+     */
+    T intern(T value) {
+        expunge();
+        Ref<T> ref = new Ref<>(value, cleared);
+        while (true) {
+            Ref<T> shared = table.putIfAbsent(ref, ref);
+            if (shared == null) return value;
+            T t = shared.get();
+            if (t != null) return t;
+            // collected after the lookup, its entry is replaced
+            table.remove(shared, shared);
+        }
+    }
+
+    /* Removes the entries of collected instances */
+    private void expunge() {
+        Reference<? extends T> r;
+        while ((r = cleared.poll()) != null) {
+            table.remove(r);
+        }
+    }
+
+    /* Weak reference that compares by the value it held when created */
+    private static final class Ref<T> extends WeakReference<T> {
+        private final int hash;
+
+        Ref(T value, ReferenceQueue<T> queue) {
+            super(value, queue);
+            hash = value.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) return true;
+            if (!(o instanceof Ref)) return false;
+            Object value = get();
+            return value != null && value.equals(((Ref<?>) o).get());
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/*
+    Copyright (C) 2017  Konstantinos Psychas <kpsychas@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.kpsychas.lib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Splits a sequence into tokens described by an ordered list of patterns.
+ *
+ * All patterns are compiled into a single deterministic automaton, so the
+ * input is scanned once regardless of the number of token types.
+ * At every position the longest match is taken and ties between patterns
+ * are resolved in favor of the one that appears first in the list.
+ */
+public final class Lexer {
+    private static final int DEAD = 0;
+    private static final int START = 1;
+    private static final int MAX_STATES = 1 << 16;
+
+    private final int classCount;
+    private final int[] asciiClass = new int[128];
+    // code points from bounds[k] up to bounds[k+1] belong to class boundClass[k]
+    private final int[] bounds;
+    private final int[] boundClass;
+
+    // trans[state * classCount + class] is the next state, accept[state]
+    // the token accepted in state or -1.
+    private final int[] trans;
+    private final int[] accept;
+
+    private Lexer(Program prog) {
+        int[] consuming = consumingInstructions(prog);
+
+        // characters that are accepted by the same instructions share a class
+        Map<BitSet, Integer> signatures = new HashMap<>();
+        for (int c = 0; c < 128; c++) {
+            asciiClass[c] = classOf(prog, consuming, c, signatures);
+        }
+        // above ASCII only the boundaries of literals and ranges can change the class
+        bounds = boundaries(prog);
+        boundClass = new int[bounds.length];
+        for (int k = 0; k < bounds.length; k++) {
+            boundClass[k] = classOf(prog, consuming, bounds[k], signatures);
+        }
+        classCount = signatures.size();
+
+        int[] representative = new int[classCount];
+        for (int k = bounds.length - 1; k >= 0; k--) {
+            representative[boundClass[k]] = bounds[k];
+        }
+        for (int c = 127; c >= 0; c--) {
+            representative[asciiClass[c]] = c;
+        }
+
+        // subset construction, state 0 is the dead state
+        int len = prog.code.length;
+        int[] stack = new int[2 * len + 1];
+        boolean[] onList = new boolean[len];
+        int[] list = new int[len];
+
+        List<int[]> states = new ArrayList<>();
+        Map<StateKey, Integer> index = new HashMap<>();
+        states.add(new int[0]);
+        index.put(new StateKey(new int[0]), DEAD);
+
+        int size = prog.closure(0, stack, onList, list, 0);
+        addState(Arrays.copyOf(list, size), states, index);
+        Arrays.fill(onList, false);
+
+        int[] trans = new int[2 * classCount];
+        for (int s = START; s < states.size(); s++) {
+            if ((s + 1) * classCount > trans.length) {
+                trans = Arrays.copyOf(trans, 2 * trans.length);
+            }
+            int[] state = states.get(s);
+            for (int k = 0; k < classCount; k++) {
+                size = 0;
+                for (int pc : state) {
+                    if (Program.op(prog.code[pc]) != Program.MATCH && prog.accepts(pc, representative[k])) {
+                        size = prog.closure(pc + 1, stack, onList, list, size);
+                    }
+                }
+                Arrays.fill(onList, false);
+                trans[s * classCount + k] = addState(Arrays.copyOf(list, size), states, index);
+            }
+            if (states.size() > MAX_STATES) {
+                throw new IllegalArgumentException("Token patterns need more than " + MAX_STATES + " states");
+            }
+        }
+        this.trans = Arrays.copyOf(trans, states.size() * classCount);
+
+        accept = new int[states.size()];
+        for (int s = 0; s < states.size(); s++) {
+            accept[s] = -1;
+            for (int pc : states.get(s)) {
+                int instr = prog.code[pc];
+                if (Program.op(instr) == Program.MATCH &&
+                        (accept[s] < 0 || Program.arg(instr) < accept[s])) {
+                    accept[s] = Program.arg(instr);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compiles token patterns, the token type of a pattern is its index
+     * in the argument list. Throws IllegalArgumentException as
+     * compile(List) does when the automaton needs more than 65536 states.
+     */
+    public static Lexer compile(String... patterns) throws PatternSyntaxException {
+        return compile(Arrays.asList(patterns));
+    }
+
+    /**
+     * Compiles token patterns, the token type of a pattern is its index
+     * in the list.
+     * Throws IllegalArgumentException if the automaton needs more than
+     * 65536 states, as for [ab]*a followed by many [ab], whose states
+     * double with every one.
+     */
+    public static Lexer compile(List<String> patterns) throws PatternSyntaxException {
+        List<Pattern.GroupNode> roots = new ArrayList<>();
+        for (String p : patterns) {
+            roots.add(Pattern.parse(p, 0));
+        }
+        return new Lexer(Program.compile(roots));
+    }
+
+    /**
+     * Tokenizes seq starting at position index and writes a triple
+     * (token type, start, end) for every token into tokens.
+     * Empty matches are not considered tokens.
+     *
+     * Tokenizing stops at the end of the sequence, when tokens is full or
+     * when no pattern matches at the current position. The end of the last
+     * token written tells where to continue from.
+     *
+     * Returns the number of tokens written.
+     */
+    public int tokenize(CharSequence seq, int index, int[] tokens) {
+        int len = seq.length();
+        int count = 0;
+
+        while (index < len && 3 * count + 3 <= tokens.length) {
+            int state = START;
+            int token = -1;
+            int end = index;
+
+            for (int i = index; i < len; ) {
+                int c = Character.codePointAt(seq, i);
+                i += Character.charCount(c);
+                state = trans[state * classCount + classOf(c)];
+                if (state == DEAD) break;
+                if (accept[state] >= 0) {
+                    token = accept[state];
+                    end = i;
+                }
+            }
+            if (token < 0) break;
+
+            tokens[3 * count] = token;
+            tokens[3 * count + 1] = index;
+            tokens[3 * count + 2] = end;
+            count++;
+            index = end;
+        }
+        return count;
+    }
+
+    private int classOf(int c) {
+        if (c < 128) {
+            return asciiClass[c];
+        }
+        int k = Arrays.binarySearch(bounds, c);
+        return boundClass[(k >= 0) ? k : -k - 2];
+    }
+
+    /* Sorted code points from 128 up where a literal or range starts or ends */
+    private static int[] boundaries(Program prog) {
+        TreeSet<Integer> set = new TreeSet<>();
+        set.add(128);
+        for (int instr : prog.code) {
+            if (Program.op(instr) == Program.CHAR) {
+                set.add(Program.arg(instr));
+                set.add(Program.arg(instr) + 1);
+            }
+        }
+        for (CharClass cc : prog.classes) {
+            for (int b : cc.ranges) {
+                set.add(b);
+            }
+        }
+        int[] bounds = new int[set.size()];
+        int n = 0;
+        for (int b : set.tailSet(128)) {
+            if (b < CharClass.MAX_CODE_POINT) {
+                bounds[n++] = b;
+            }
+        }
+        return Arrays.copyOf(bounds, n);
+    }
+
+    private static int[] consumingInstructions(Program prog) {
+        int n = 0;
+        int[] pcs = new int[prog.code.length];
+        for (int pc = 0; pc < prog.code.length; pc++) {
+            int op = Program.op(prog.code[pc]);
+            if (op == Program.CHAR || op == Program.CLASS) {
+                pcs[n++] = pc;
+            }
+        }
+        return Arrays.copyOf(pcs, n);
+    }
+
+    private static int classOf(Program prog, int[] consuming, int c, Map<BitSet, Integer> signatures) {
+        BitSet signature = new BitSet(consuming.length);
+        for (int i = 0; i < consuming.length; i++) {
+            if (prog.accepts(consuming[i], c)) {
+                signature.set(i);
+            }
+        }
+        Integer k = signatures.get(signature);
+        if (k == null) {
+            k = signatures.size();
+            signatures.put(signature, k);
+        }
+        return k;
+    }
+
+    private static int addState(int[] pcs, List<int[]> states, Map<StateKey, Integer> index) {
+        Arrays.sort(pcs);
+        StateKey key = new StateKey(pcs);
+        Integer s = index.get(key);
+        if (s == null) {
+            s = states.size();
+            states.add(pcs);
+            index.put(key, s);
+        }
+        return s;
+    }
+
+    private static final class StateKey {
+        final int[] pcs;
+        final int hash;
+
+        StateKey(int[] pcs) {
+            this.pcs = pcs;
+            this.hash = Arrays.hashCode(pcs);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return (o instanceof StateKey) && Arrays.equals(pcs, ((StateKey) o).pcs);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
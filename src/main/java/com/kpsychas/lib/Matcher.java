@@ -6,109 +6,163 @@ package com.kpsychas.lib;
 public class Matcher {
     CharSequence text;
     Pattern.QualMatchRecord match;
+    // capture slots of the match, 2g and 2g+1 hold the bounds of group g
+    int[] slots;
+    private final Pattern pattern;
+    // position the next call to find searches from
+    private int from = 0;
+    // true until the match from the start of the text is made, which is
+    // done on first use so that find never runs the tree Matcher
+    private boolean pending = true;
+    // true while slots hold the match from the start of the text rather
+    // than one found by find
+    private boolean atStart = false;
+    // linear engine find takes the groups from, created on first use
+    private Program.Captures captures;
 
     Matcher(Pattern p, CharSequence text) {
         this.text = text;
-        p.matches(this);
+        this.pattern = p;
+    }
+
+    private void ensureMatched() {
+        if (pending) {
+            matchStart();
+        }
+    }
+
+    private void matchStart() {
+        pending = false;
+        atStart = true;
+        pattern.matches(this);
+    }
+
+    /**
+     * Searches for the next match, starting at the beginning of the text or
+     * after the previous match found by this method.
+     * Returns true if a match was found.
+     */
+    public boolean find() {
+        pending = false;
+        atStart = false;
+        match = null;
+        while (from <= text.length()) {
+            int start = pattern.find(text, from);
+            if (start < 0) break;
+
+            // the bounds and groups come from the linear engine, which
+            // finds the same match as the tree without recursing per character
+            if (captures == null) {
+                captures = new Program.Captures(pattern.program);
+            }
+            int[] s = new int[2 * (pattern.program.groupCount + 1)];
+            if (captures.run(text, start, s)) {
+                slots = s;
+                from = (s[1] == start) ? start + 1 : s[1];
+                return true;
+            }
+            from = start + 1;
+        }
+        from = text.length() + 1;
+        slots = null;
+        return false;
+    }
+
+    /**
+     * Returns the index where the last match starts.
+     */
+    public int start() {
+        return start(0);
+    }
+
+    /**
+     * Returns the index where the given group starts in the last match or
+     * -1 if the group took no part in it.
+     */
+    public int start(int group) {
+        checkGroup(group);
+        return slots[2 * group];
+    }
+
+    /**
+     * Returns the index after the last character of the last match.
+     */
+    public int end() {
+        return end(0);
+    }
+
+    /**
+     * Returns the index after the last character of the given group in the
+     * last match or -1 if the group took no part in it.
+     */
+    public int end(int group) {
+        checkGroup(group);
+        return slots[2 * group + 1];
     }
 
     public String group() {
         return group(0);
     }
 
+    /**
+     * Returns true if the pattern matches from the start of the text, which
+     * becomes the last match. Calls to find do not change the result, the
+     * match from the start is made again after them.
+     */
     public boolean matches() {
-        return (match != null);
+        if (!atStart) {
+            matchStart();
+        }
+        return (slots != null);
     }
 
+    /**
+     * Returns what the given group matched in the last match or null if the
+     * group took no part in it. Groups are numbered by their opening
+     * parenthesis starting from 1, group 0 is the whole match. A group
+     * inside a repetition holds what it matched in the last repetition
+     * that is part of the match.
+     */
     public String group(int group) {
-        if (match == null) {
-            throw new IllegalStateException("No match found");
-        }
-        if (group < 0) {
-            throw new IndexOutOfBoundsException("No group " + group);
-        }
-        StringBuilder s = new StringBuilder();
-        int groups_parsed = group_rec(match, text, 0, group, s);
+        checkGroup(group);
+        int s = slots[2 * group];
+        return (s < 0) ? null : text.subSequence(s, slots[2 * group + 1]).toString();
+    }
 
-        if (groups_parsed > group) {
-            return s.toString();
-        } else {
-            throw new IndexOutOfBoundsException("No group " + group);
-        }
+    /**
+     * Returns the number of groups in the pattern.
+     */
+    public int groupCount() {
+        return pattern.program.groupCount;
     }
 
-    private int group_rec(Pattern.QualMatchRecord match, CharSequence text,
-                          int group, int group_target, StringBuilder result) {
-        if (!match.matches.isEmpty()) {
-            if (group == group_target) {
-                int s, e;
-                if (group_target == 0) {
-                    s = match.matchStart;
-                    e = match.matchEnd();
-                } else {
-                    s = match.matches.peek().matchLoc;
-                    e = match.matches.peek().matchEnd();
-                }
-                result.append(text.toString().substring(s, e));
-                return group + 1;
-            } else {
-                group++;
-            }
+    private void checkGroup(int group) {
+        ensureMatched();
+        if (slots == null) {
+            throw new IllegalStateException("No match found");
         }
-
-        for (Pattern.QualMatchRecord qmr : match.matches.peek().recordList) {
-            if (qmr.node instanceof Pattern.GroupNode) {
-                if (group > group_target) return group;
-                group = group_rec(qmr, text, group, group_target, result);
-            }
+        if (group < 0 || 2 * group >= slots.length) {
+            throw new IndexOutOfBoundsException("No group " + group);
         }
-        return group;
     }
+
     /**
      * Function that prints what was matched as well as the last match of a group.
      */
     public void printMatch() {
-        if (this.match == null)
+        ensureMatched();
+        if (slots == null) {
             System.out.println("No matching was found");
-        else
-            printMatchRec(this.text, this.match, 0);
-    }
-
-    private static int printMatchRec(CharSequence seq, Pattern.QualMatchRecord match, int group) {
-        if (match.matches != null && !match.matches.isEmpty()) {
-            if (group == 0) {
-                int s = match.matchStart;
-                int e = match.matchEnd();
-
-                System.out.printf("Full expression match from %d to %d: %s\n", s, e, seq.toString().substring(s, e));
-                group++;
-            } else {
-                int s = match.matches.peek().matchLoc;
-                int e = match.matches.peek().matchEnd();
-                System.out.printf("Group %d match from %d to %d: %s\n", group, s, e, seq.toString().substring(s, e));
-                group++;
-            }
-            for (Pattern.QualMatchRecord qmr : match.matches.peek().recordList) {
-                if (qmr.node instanceof Pattern.GroupNode) {
-                    group = printMatchRec(seq, qmr, group);
-                }
-            }
-            return group;
-        } else {
-            if (group == 0) {
-                int s = match.matchStart;
-                int e = match.matchEnd();
-
-                System.out.printf("Full expression match from %d to %d: %s\n", s, e, seq.toString().substring(s, e));
-                group++;
+            return;
+        }
+        for (int g = 0; 2 * g < slots.length; g++) {
+            if (slots[2 * g] < 0) {
+                System.out.printf("Group %d did not match\n", g);
+            } else if (g == 0) {
+                System.out.printf("Full expression match from %d to %d: %s\n", slots[0], slots[1], group(0));
             } else {
-                /* Empty match is possible */
-                int s = match.matchStart;
-                int e = match.matchEnd();
-                System.out.printf("Group %d match from %d to %d: %s\n", group, s, e, seq.toString().substring(s, e));
-                group++;
+                System.out.printf("Group %d match from %d to %d: %s\n", g, slots[2 * g], slots[2 * g + 1], group(g));
             }
-            return group;
         }
     }
 }
@@ -17,15 +17,45 @@
 package com.kpsychas.lib;
 
 
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.stream.IntStream;
 
 public class Pattern {
-    private final GroupNode root;
+    /**
+     * Enables case-insensitive matching of letters.
+     * Case is folded into the expression when it is compiled. Unlike the
+     * flag of the same value in java.util.regex, which folds only US-ASCII
+     * unless UNICODE_CASE is also set, every code point matches all the
+     * ones it is joined to by Character.toLowerCase and toUpperCase, so
+     * the Kelvin sign matches k and K, and long s matches s and S.
+     */
+    public static final int CASE_INSENSITIVE = 0x02;
+
+    /**
+     * Matchers find groups by running the compiled program with a set of
+     * capture positions per thread instead of backtracking over the parse
+     * tree. Time is linear in the length of the input and a group that
+     * takes no part in the match is null.
+     */
+    public static final int LINEAR_TIME = 0x400;
+
     private final String p;
+    private final int flags;
+    final Program program;
+
+    // parse tree is only kept once it is needed by a Matcher
+    private volatile GroupNode root;
+    // program of the reversed expression, built by the first search
+    private volatile Program reverse;
 
-    private Pattern(String p) throws PatternSyntaxException {
+    private Pattern(String p, int flags) throws PatternSyntaxException {
         this.p = p;
-        root = compile();
+        this.flags = flags;
+        program = Program.intern(Program.compile(parse(p, flags)));
     }
 
     /**
@@ -38,44 +68,153 @@ public class Pattern {
      * RANGE_EXPR := RANGE_START RANGE RANGE_END
      * RANGE := LITERAL "-" LITERAL RANGE | LITERAL RANGE | ""
      * GROUP_EXPR := "(" EXPR ")"
-     * MOD := "*" | "?" | "+"
+     * MOD := "*" | "?" | "+" | "*?" | "??" | "+?"
      * RANGE_START := "[^" | "["
      * RANGE_END := "]"
-     * LITERAL := 0-9 | a-z | A-Z
+     * LITERAL := any code point except ()[]*+?^-.|\{}$&
      */
     public static Pattern compile(String p) throws PatternSyntaxException {
-        return new Pattern(p);
+        return new Pattern(p, 0);
+    }
+
+    /**
+     * Compiles the expression with the given flags, a bit mask that may
+     * include CASE_INSENSITIVE and LINEAR_TIME.
+     */
+    public static Pattern compile(String p, int flags) throws PatternSyntaxException {
+        return new Pattern(p, flags);
+    }
+
+    /**
+     * Compiles every expression of the collection, in parallel when there
+     * are many. Patterns are returned in the iteration order of the
+     * collection.
+     *
+     * If any expression is invalid none is returned. The exception thrown is
+     * the one of the first invalid expression and the exceptions of all
+     * others are added to it as suppressed, see getIndex and getPattern.
+     */
+    public static List<Pattern> compileAll(Collection<String> patterns) throws PatternSyntaxException {
+        return compileAll(patterns, 0);
+    }
+
+    /**
+     * Compiles every expression of the collection with the given flags, see
+     * compileAll(Collection).
+     */
+    public static List<Pattern> compileAll(Collection<String> patterns, int flags)
+            throws PatternSyntaxException {
+        final String[] sources = patterns.toArray(new String[0]);
+        final Pattern[] compiled = new Pattern[sources.length];
+        final PatternSyntaxException[] errors = new PatternSyntaxException[sources.length];
+
+        IntStream indices = IntStream.range(0, sources.length);
+        if (sources.length >= PARALLEL_COMPILE) {
+            indices = indices.parallel();
+        }
+        indices.forEach(i -> {
+            try {
+                compiled[i] = new Pattern(sources[i], flags);
+            } catch (PatternSyntaxException e) {
+                errors[i] = e;
+            }
+        });
+
+        PatternSyntaxException first = null;
+        for (PatternSyntaxException e : errors) {
+            if (e == null) continue;
+            if (first == null) {
+                first = e;
+            } else {
+                first.addSuppressed(e);
+            }
+        }
+        if (first != null) {
+            throw first;
+        }
+        return Arrays.asList(compiled);
+    }
+
+    // collections smaller than this are compiled on the calling thread
+    private static final int PARALLEL_COMPILE = 64;
+
+    /**
+     * Returns the flags the pattern was compiled with.
+     */
+    public int flags() {
+        return flags;
+    }
+
+    // characters of the grammar and ones kept for future operators
+    private static final String RESERVED = "()[]*+?^-.|\\{}$&";
+    // bit c of the mask is set for every reserved ASCII character c
+    private static final long RESERVED_LO = mask(RESERVED, 0);
+    private static final long RESERVED_HI = mask(RESERVED, 64);
+
+    private static long mask(String chars, int base) {
+        long mask = 0;
+        for (int k = 0; k < chars.length(); k++) {
+            int c = chars.charAt(k) - base;
+            if (c >= 0 && c < 64) {
+                mask |= 1L << c;
+            }
+        }
+        return mask;
     }
 
     enum QuantType {
-        STAR, QUESTIONMARK, PLUS, NONE
+        STAR, QUESTIONMARK, PLUS, NONE, STAR_LAZY, QUESTIONMARK_LAZY, PLUS_LAZY;
+
+        /* Reluctant version of a greedy quantifier */
+        QuantType lazy() {
+            switch (this) {
+                case STAR:
+                    return STAR_LAZY;
+                case QUESTIONMARK:
+                    return QUESTIONMARK_LAZY;
+                case PLUS:
+                    return PLUS_LAZY;
+                default:
+                    return this;
+            }
+        }
+
+        boolean isLazy() {
+            return this == STAR_LAZY || this == QUESTIONMARK_LAZY || this == PLUS_LAZY;
+        }
+
+        /* Quantified expression may match zero times */
+        boolean isOptional() {
+            return this == STAR || this == QUESTIONMARK || this == STAR_LAZY || this == QUESTIONMARK_LAZY;
+        }
+
+        /* Quantified expression may match more than once */
+        boolean isRepeated() {
+            return this == STAR || this == PLUS || this == STAR_LAZY || this == PLUS_LAZY;
+        }
     }
 
     enum State {
-        EXPR, MOD, IN_RANGE, IN_RANGE_AFTER_DASH, IN_RANGE_BEFORE_DASH,
+        EXPR, MOD, LAZY, IN_RANGE, IN_RANGE_AFTER_DASH, IN_RANGE_BEFORE_DASH,
     }
 
-    private GroupNode compile() throws PatternSyntaxException {
+    static GroupNode parse(String p, int flags) throws PatternSyntaxException {
+        boolean foldCase = (flags & CASE_INSENSITIVE) != 0;
         GroupNode root = new GroupNode(null);
+        int groups = 0;
         GroupNode currentGroup = root;
         BaseNode currentNode = root;
         RangeNode range = null;
         State state = State.EXPR;
 
-        Character prev, curr, next, range_start=Character.MIN_VALUE;
+        int prev, curr = 0, next, range_start = Character.MIN_VALUE;
 
-        for (int i = 0; i < p.length(); i += 1) {
-            try {
-                prev = p.charAt(i - 1);
-            } catch (IndexOutOfBoundsException e) {
-                prev = Character.MIN_VALUE;
-            }
-            curr = p.charAt(i);
-            try {
-                next = p.charAt(i + 1);
-            } catch (IndexOutOfBoundsException e) {
-                next = Character.MIN_VALUE;
-            }
+        // characters are read as code points, a surrogate pair is one literal
+        for (int i = 0; i < p.length(); i += Character.charCount(curr)) {
+            prev = (i > 0) ? p.charAt(i - 1) : Character.MIN_VALUE;
+            curr = p.codePointAt(i);
+            int after = i + Character.charCount(curr);
+            next = (after < p.length()) ? p.codePointAt(after) : Character.MIN_VALUE;
 
             switch (curr) {
                 case '-':
@@ -88,7 +227,7 @@ public class Pattern {
                 case '*':
                     if (state == State.MOD) {
                         currentNode.mod = QuantType.STAR;
-                        state = State.EXPR;
+                        state = (next == '?') ? State.LAZY : State.EXPR;
                     } else {
                         throw new PatternSyntaxException("Unexpected character '*'", p, i);
                     }
@@ -96,6 +235,9 @@ public class Pattern {
                 case '?':
                     if (state == State.MOD) {
                         currentNode.mod = QuantType.QUESTIONMARK;
+                        state = (next == '?') ? State.LAZY : State.EXPR;
+                    } else if (state == State.LAZY) {
+                        currentNode.mod = currentNode.mod.lazy();
                         state = State.EXPR;
                     } else {
                         throw new PatternSyntaxException("Unexpected character '?'", p, i);
@@ -104,7 +246,7 @@ public class Pattern {
                 case '+':
                     if (state == State.MOD) {
                         currentNode.mod = QuantType.PLUS;
-                        state = State.EXPR;
+                        state = (next == '?') ? State.LAZY : State.EXPR;
                     } else {
                         throw new PatternSyntaxException("Unexpected character '+'", p, i);
                     }
@@ -131,6 +273,9 @@ public class Pattern {
                     break;
                 case ']':
                     if (state == State.IN_RANGE) {
+                        if (foldCase) {
+                            range.fold_case();
+                        }
                         currentGroup.add(range);
                         if (isMod(next)) {
                             state = State.MOD;
@@ -145,6 +290,7 @@ public class Pattern {
                 case '(':
                     if (state == State.EXPR) {
                         GroupNode newGroup = new GroupNode(currentGroup);
+                        newGroup.number = ++groups;
                         currentGroup.add(newGroup);
                         currentGroup = newGroup;
                     } else {
@@ -171,8 +317,8 @@ public class Pattern {
                     if (isLiteral(curr)) {
                         if (state == State.IN_RANGE_AFTER_DASH) {
                             if (!range.add_range(range_start, curr)) {
-                                throw new PatternSyntaxException(
-                                        "Range limits: " + range_start + ',' + curr + " are incompatible", p, i);
+                                throw new PatternSyntaxException("Range limits: " + toString(range_start) +
+                                        ',' + toString(curr) + " are incompatible", p, i);
                             }
                             state = State.IN_RANGE;
                         } else if (state == State.IN_RANGE) {
@@ -183,7 +329,16 @@ public class Pattern {
                                 range.add_range(curr, curr);
                             }
                         } else if (state == State.EXPR) {
-                            currentNode = new LiteralNode(currentNode, curr);
+                            if (foldCase && RangeNode.caseEquivalents(curr) != null) {
+                                // a character with another case becomes the class
+                                // of its cases, the same ones as fold_case adds
+                                range = new RangeNode(currentNode, false);
+                                range.add_range(curr, curr);
+                                range.fold_case();
+                                currentNode = range;
+                            } else {
+                                currentNode = new LiteralNode(currentNode, curr);
+                            }
                             currentGroup.add(currentNode);
 
                             if (isMod(next)) {
@@ -192,7 +347,7 @@ public class Pattern {
                         }
                     } else {
                         throw new PatternSyntaxException(
-                                "Illegal character '" + curr + "' in regular expression", p, i);
+                                "Illegal character '" + toString(curr) + "' in regular expression", p, i);
                     }
             }
         }
@@ -208,12 +363,22 @@ public class Pattern {
 
     }
 
-    private static boolean isMod(Character c) {
+    private static boolean isMod(int c) {
         return ((c == '*') || (c == '?') || (c == '+'));
     }
 
-    private static boolean isLiteral(Character c) {
-        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9');
+    /* Any code point except reserved characters and unpaired surrogates */
+    private static boolean isLiteral(int c) {
+        if (c < 64) {
+            return (RESERVED_LO & (1L << c)) == 0;
+        } else if (c < 128) {
+            return (RESERVED_HI & (1L << (c - 64))) == 0;
+        }
+        return c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE;
+    }
+
+    private static String toString(int c) {
+        return new String(Character.toChars(c));
     }
 
     private static void printPatternRec(GroupNode g, int level) {
@@ -224,9 +389,9 @@ public class Pattern {
                 System.out.println("End of group at level " + level);
             } else if (node instanceof RangeNode) {
                 System.out.println("Range with " + (((RangeNode) node).isNeg ?
-                        "Non Matching characters:":"Matching characters") + ((RangeNode) node).charset);
+                        "Non Matching characters:":"Matching characters") + ((RangeNode) node).describe());
             } else if (node instanceof LiteralNode) {
-                System.out.println("Literal character: " + ((LiteralNode) node).c);
+                System.out.println("Literal character: " + toString(((LiteralNode) node).c));
             }
             System.out.println("Modifier: " + node.mod);
         }
@@ -236,7 +401,64 @@ public class Pattern {
      * Convenience function for debugging parsing of regular expression.
      */
     public void printPattern() {
-        printPatternRec(root, 0);
+        printPatternRec(root(), 0);
+    }
+
+    /**
+     * Returns an estimate in bytes of the memory retained by this pattern.
+     * Programs and character classes are shared by all patterns that compile
+     * to the same instructions, they are counted here in full so the sum over
+     * many patterns is an upper bound.
+     */
+    public long footprint() {
+        long size = align(OBJECT_HEADER + 4 * REFERENCE + 4);
+        size += align(OBJECT_HEADER + REFERENCE + 8) + align(ARRAY_HEADER + p.length());
+        size += program.footprint();
+        GroupNode r = root;
+        if (r != null) {
+            size += r.footprint();
+        }
+        Program rev = reverse;
+        if (rev != null) {
+            size += rev.footprint();
+        }
+        return size;
+    }
+
+    static final int OBJECT_HEADER = 12;
+    static final int ARRAY_HEADER = 16;
+    static final int REFERENCE = 4;
+
+    static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    GroupNode root() {
+        GroupNode r = root;
+        if (r == null) {
+            r = reparse();
+            root = r;
+        }
+        return r;
+    }
+
+    Program reverse() {
+        Program rev = reverse;
+        if (rev == null) {
+            GroupNode r = root;
+            rev = Program.intern(Program.compileReverse((r != null) ? r : reparse()));
+            reverse = rev;
+        }
+        return rev;
+    }
+
+    private GroupNode reparse() {
+        try {
+            return parse(p, flags);
+        } catch (PatternSyntaxException e) {
+            // expression was already parsed once by the constructor
+            throw new IllegalStateException(e);
+        }
     }
 
     boolean matches(Matcher matcher) {
@@ -244,14 +466,75 @@ public class Pattern {
     }
 
     boolean matches(Matcher matcher, int index) {
-        matcher.match = root.match(matcher.text, index);
-        return (matcher.match != null);
+        if ((flags & LINEAR_TIME) != 0) {
+            matcher.slots = program.captures(matcher.text, index);
+            return (matcher.slots != null);
+        }
+        if (!program.mayMatch(matcher.text, index)) {
+            matcher.match = null;
+            matcher.slots = null;
+            return false;
+        }
+        matcher.match = root().match(matcher.text, index);
+        if (matcher.match == null) {
+            matcher.slots = null;
+            return false;
+        }
+        matcher.slots = new int[2 * (program.groupCount + 1)];
+        Arrays.fill(matcher.slots, -1);
+        captures(matcher.match, matcher.slots);
+        return true;
+    }
+
+    /*
+     * Records where every group matched, a group repeated more than once
+     * keeps its last repetition. Groups inside a repetition keep what they
+     * matched in an earlier one if they take no part in a later one, as in
+     * java.util.regex.
+     */
+    private static void captures(QualMatchRecord qmr, int[] slots) {
+        int g = ((GroupNode) qmr.node).number;
+        for (MatchRecord mr : qmr.matches) {
+            slots[2 * g] = mr.matchLoc;
+            slots[2 * g + 1] = mr.matchEnd();
+            for (QualMatchRecord child : mr.recordList) {
+                if (child.node instanceof GroupNode) {
+                    captures(child, slots);
+                }
+            }
+        }
     }
 
     public Matcher matcher(CharSequence seq) {
         return new Matcher(this, seq);
     }
 
+    /**
+     * Returns a matcher that is fed the input piece by piece, see
+     * IncrementalMatcher.
+     */
+    public IncrementalMatcher incrementalMatcher() {
+        return new IncrementalMatcher(program);
+    }
+
+    /**
+     * Returns a Matcher for the characters a[offset..offset+length),
+     * the array is not copied.
+     */
+    public Matcher matcher(char[] a, int offset, int length) {
+        checkRange(a.length, offset, length);
+        return new Matcher(this, CharBuffer.wrap(a, offset, length));
+    }
+
+    /**
+     * Returns a Matcher for the bytes a[offset..offset+length) read as
+     * ISO-8859-1 characters, the array is not copied.
+     */
+    public Matcher matcher(byte[] a, int offset, int length) {
+        checkRange(a.length, offset, length);
+        return new Matcher(this, new Latin1(a, offset, length));
+    }
+
     /**
      * Returns true if regex matches the sequence starting from the first character
      */
@@ -264,8 +547,212 @@ public class Pattern {
      * at position index (indexing starts at 0).
      */
     public boolean matches(CharSequence seq, int index) {
-        QualMatchRecord match = root.match(seq, index);
-        return (match != null);
+        return program.matches(seq, index);
+    }
+
+    /**
+     * Returns the smallest index, not before from, at which regex matches
+     * the sequence or -1 if there is none.
+     *
+     * The sequence is scanned forward once to find where the leftmost match
+     * ends and from there backwards with the reversed expression to find
+     * where it starts.
+     */
+    public int find(CharSequence seq, int from) {
+        if (from < 0 || from > seq.length()) {
+            throw new IndexOutOfBoundsException("Illegal start index " + from);
+        }
+        int end = program.findEnd(seq, from);
+        if (end < 0) return -1;
+        return reverse().findStart(seq, end, from);
+    }
+
+    /**
+     * Returns the smallest index at which regex matches the sequence or -1
+     * if there is none.
+     */
+    public int find(CharSequence seq) {
+        return find(seq, 0);
+    }
+
+    /**
+     * Finds successive matches in the sequence, starting at index from, and
+     * writes the start and end of each into out with relative puts, two ints
+     * per match. Matches are found the same way as by find, the next search
+     * starts at the end of the previous match, one character after it for
+     * an empty match. Returns the number of matches written.
+     *
+     * No object is allocated per match. Searching stops when fewer than two
+     * ints remain in out, to continue call again from the end of the last
+     * match written, or from one past it if that match was empty, as the
+     * search would otherwise find the same empty match again. A buffer allocated with ByteBuffer.allocateDirect and
+     * viewed with asIntBuffer keeps the results off the heap.
+     */
+    public int findAll(CharSequence seq, int from, IntBuffer out) {
+        Finder f = new Finder(this, seq, from);
+        int count = 0;
+        while (out.remaining() >= 2 && f.next()) {
+            out.put(f.start).put(f.end);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Same as findAll(CharSequence, int, IntBuffer) with one long per match,
+     * the start in the high 32 bits and the end in the low 32 bits.
+     */
+    public int findAll(CharSequence seq, int from, LongBuffer out) {
+        Finder f = new Finder(this, seq, from);
+        int count = 0;
+        while (out.hasRemaining() && f.next()) {
+            out.put(((long) f.start << 32) | f.end);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Same as findAll(CharSequence, int, IntBuffer) but writes the start and
+     * end of every group, 2 * (groupCount + 1) ints per match with -1 for a
+     * group that took no part in the match. Groups are found in linear time
+     * as with LINEAR_TIME.
+     */
+    public int findGroups(CharSequence seq, int from, IntBuffer out) {
+        Finder f = new Finder(this, seq, from);
+        Program.Captures captures = new Program.Captures(program);
+        int[] slots = new int[2 * (program.groupCount + 1)];
+        int count = 0;
+        while (out.remaining() >= slots.length && f.next()) {
+            if (!captures.run(seq, f.start, slots)) {
+                // the reversed program found a start the forward one rejects
+                throw new IllegalStateException("No match at " + f.start);
+            }
+            f.end(slots[1]);
+            out.put(slots);
+            count++;
+        }
+        return count;
+    }
+
+    /*
+     * Finder:
+     * successive matches of a pattern in a sequence, reusing the threads of
+     * both programs from one match to the next.
+     */
+    private static final class Finder {
+        private final Program forward;
+        private final Program backward;
+        private final Program.Threads forwardThreads;
+        private final Program.Threads backwardThreads;
+        // loops that may repeat empty end a match earlier than the threads
+        // tell, their end is found with captures
+        private final Program.Captures captures;
+        private final int[] bounds = new int[2];
+        private final CharSequence seq;
+        private int from;
+        int start;
+        int end;
+
+        Finder(Pattern p, CharSequence seq, int from) {
+            if (from < 0 || from > seq.length()) {
+                throw new IndexOutOfBoundsException("Illegal start index " + from);
+            }
+            forward = p.program;
+            backward = p.reverse();
+            forwardThreads = new Program.Threads(forward);
+            backwardThreads = new Program.Threads(backward);
+            captures = (forward.slotCount > 2 * (forward.groupCount + 1)) ? new Program.Captures(forward) : null;
+            this.seq = seq;
+            this.from = from;
+        }
+
+        /* Finds the next match, returns false if there is none */
+        boolean next() {
+            if (from > seq.length()) return false;
+            int e = forward.findEnd(seq, from, forwardThreads);
+            if (e < 0) {
+                from = seq.length() + 1;
+                return false;
+            }
+            start = backward.findStart(seq, e, from, backwardThreads);
+            if (captures != null && captures.run(seq, start, bounds)) {
+                e = bounds[1];
+            }
+            end(e);
+            return true;
+        }
+
+        /* Sets the end of the current match and where the next search starts */
+        void end(int e) {
+            end = e;
+            from = (end == start) ? end + 1 : end;
+        }
+    }
+
+    /**
+     * Returns true if regex matches the characters a[offset..offset+length)
+     * starting from the first one.
+     */
+    public boolean matches(char[] a, int offset, int length) {
+        checkRange(a.length, offset, length);
+        return program.matches(a, offset, offset + length);
+    }
+
+    /**
+     * Returns true if regex matches the bytes a[offset..offset+length)
+     * starting from the first one. Bytes are read as ISO-8859-1 characters.
+     */
+    public boolean matches(byte[] a, int offset, int length) {
+        checkRange(a.length, offset, length);
+        return program.matches(a, offset, offset + length);
+    }
+
+    private static void checkRange(int size, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > size - length) {
+            throw new IndexOutOfBoundsException(
+                    "Range [" + offset + ", " + offset + " + " + length + ") out of bounds for length " + size);
+        }
+    }
+
+    /*
+     * Latin1:
+     * read-only view of a byte array range as ISO-8859-1 characters.
+     */
+    private static final class Latin1 implements CharSequence {
+        private final byte[] a;
+        private final int offset;
+        private final int length;
+
+        Latin1(byte[] a, int offset, int length) {
+            this.a = a;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + length);
+            }
+            return (char) (a[offset + index] & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            checkRange(length, start, end - start);
+            return new Latin1(a, offset + start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(a, offset, length, StandardCharsets.ISO_8859_1);
+        }
     }
 
     /* Local classes */
@@ -282,45 +769,179 @@ public class Pattern {
         // Kept for documentation purposes.
         public abstract boolean matchRec(CharSequence seq, int index, QualMatchRecord qmr);
         public abstract QualMatchRecord match(CharSequence seq, int index);
+
+        // Matches a single repetition of the node or returns null
+        abstract MatchRecord matchOnce(CharSequence seq, int index);
+
+        // Estimate in bytes of the memory retained by the node
+        abstract long footprint();
     }
 
     static class RangeNode extends BaseNode {
         final boolean isNeg;
-        final Set<Character> charset = new HashSet<>();
+        // inversion list of the code points listed in the range
+        int[] ranges = new int[0];
 
         RangeNode(BaseNode parent, boolean isNeg) {
             super(parent);
             this.isNeg = isNeg;
         }
 
-        public boolean add_range(Character from, Character to) {
+        public boolean add_range(int from, int to) {
             if (!same_class(from, to)) {
                 return false;
             }
 
-            if (Character.compare(from, to) > 0) {
+            if (from > to) {
                 return false;
             }
 
-            for (char c=from; c<=to; c++) {
-                charset.add(c);
-            }
+            ranges = CharClass.union(ranges, new int[]{from, to + 1});
             return true;
         }
 
-        private static boolean same_class(Character c1, Character c2) {
+        public void fold_case() {
+            int[] folded = ranges;
+            for (int k = 0; k < ranges.length; k += 2) {
+                for (int c = ranges[k]; c < ranges[k + 1]; c++) {
+                    int[] same = caseEquivalents(c);
+                    if (same == null) continue;
+                    for (int d : same) {
+                        if (d != c) {
+                            folded = CharClass.union(folded, new int[]{d, d + 1});
+                        }
+                    }
+                }
+            }
+            ranges = folded;
+        }
+
+        /*
+         * Returns every code point of the case class of c, c included, or
+         * null if c has no other case.
+         */
+        static int[] caseEquivalents(int c) {
+            return CaseClasses.MEMBERS.get(c);
+        }
+
+        /*
+         * Case Classes:
+         * code points joined by their lower and upper case mappings, keyed
+         * by each member. Joining both ways keeps folding symmetric, the
+         * Kelvin sign lowers to k but nothing maps k to the Kelvin sign.
+         * Built on first use.
+         */
+        private static final class CaseClasses {
+            static final Map<Integer, int[]> MEMBERS = build();
+
+            private static Map<Integer, int[]> build() {
+                Map<Integer, Integer> parent = new HashMap<>();
+                // planes above the first two have no case mappings
+                for (int c = 0; c < 0x20000; c++) {
+                    int lower = Character.toLowerCase(c);
+                    int upper = Character.toUpperCase(c);
+                    if (lower != c) {
+                        join(parent, c, lower);
+                    }
+                    if (upper != c) {
+                        join(parent, c, upper);
+                    }
+                }
+                Map<Integer, List<Integer>> classes = new HashMap<>();
+                for (Integer c : parent.keySet()) {
+                    int r = root(parent, c);
+                    List<Integer> list = classes.get(r);
+                    if (list == null) {
+                        list = new ArrayList<>();
+                        classes.put(r, list);
+                    }
+                    list.add(c);
+                }
+                Map<Integer, int[]> members = new HashMap<>();
+                for (List<Integer> list : classes.values()) {
+                    int[] m = new int[list.size()];
+                    for (int i = 0; i < m.length; i++) {
+                        m[i] = list.get(i);
+                    }
+                    Arrays.sort(m);
+                    for (int c : m) {
+                        members.put(c, m);
+                    }
+                }
+                return members;
+            }
+
+            private static void join(Map<Integer, Integer> parent, int a, int b) {
+                int ra = root(parent, a);
+                int rb = root(parent, b);
+                if (ra != rb) {
+                    parent.put(ra, rb);
+                }
+            }
+
+            private static int root(Map<Integer, Integer> parent, int c) {
+                Integer p = parent.get(c);
+                if (p == null) {
+                    parent.put(c, c);
+                    return c;
+                }
+                if (p != c) {
+                    p = root(parent, p);
+                    parent.put(c, p);
+                }
+                return p;
+            }
+        }
+
+        /* ASCII letters and digits only form ranges within their own kind */
+        private static boolean same_class(int c1, int c2) {
+            if (!isAsciiAlnum(c1) && !isAsciiAlnum(c2)) {
+                return true;
+            }
             return  ((c1 >= 'A') && (c1 <= 'Z') && (c2 >= 'A') && (c2 <= 'Z')) ||
                     ((c1 >= 'a') && (c1 <= 'z') && (c2 >= 'a') && (c2 <= 'z')) ||
                     ((c1 >= '0') && (c1 <= '9') && (c2 >= '0') && (c2 <= '9'));
         }
 
+        private static boolean isAsciiAlnum(int c) {
+            return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9');
+        }
+
+        boolean contains(int c) {
+            return CharClass.contains(ranges, c) != isNeg;
+        }
+
+        String describe() {
+            StringBuilder sb = new StringBuilder("[");
+            for (int k = 0; k < ranges.length; k += 2) {
+                if (k > 0) sb.append(", ");
+                sb.appendCodePoint(ranges[k]);
+                if (ranges[k + 1] - 1 > ranges[k]) {
+                    sb.append('-').appendCodePoint(ranges[k + 1] - 1);
+                }
+            }
+            return sb.append(']').toString();
+        }
+
+        MatchRecord matchOnce(CharSequence seq, int index) {
+            if (index < seq.length()) {
+                int c = Character.codePointAt(seq, index);
+                if (contains(c)) {
+                    return new MatchRecord(index, Character.charCount(c));
+                }
+            }
+            return null;
+        }
+
         public boolean matchRec(CharSequence seq, int index, QualMatchRecord qmr) {
+            if (qmr.quant.isLazy() && qmr.isMatched()) return true;
             if (index >= seq.length()) return qmr.isMatched();
 
-            if (charset.contains(seq.charAt(index)) != isNeg) {
-                MatchRecord mr = new MatchRecord(index, 1);
+            int c = Character.codePointAt(seq, index);
+            if (contains(c)) {
+                MatchRecord mr = new MatchRecord(index, Character.charCount(c));
                 if (qmr.addMatch(mr))
-                    return matchRec(seq, index+1, qmr);
+                    return matchRec(seq, index + mr.matchLen, qmr);
                 else
                     return qmr.isMatched();
             } else {
@@ -335,23 +956,37 @@ public class Pattern {
 
             return null;
         }
+
+        long footprint() {
+            // node and the inversion list
+            return align(OBJECT_HEADER + 2 * REFERENCE + 1) + align(ARRAY_HEADER + 4L * ranges.length);
+        }
     }
 
     static class LiteralNode extends BaseNode {
-        final Character c;
+        // code point of the literal
+        final int c;
 
-        LiteralNode(BaseNode parent, Character c) {
+        LiteralNode(BaseNode parent, int c) {
             super(parent);
             this.c = c;
         }
 
+        MatchRecord matchOnce(CharSequence seq, int index) {
+            if (index < seq.length() && Character.codePointAt(seq, index) == c) {
+                return new MatchRecord(index, Character.charCount(c));
+            }
+            return null;
+        }
+
         public boolean matchRec(CharSequence seq, int index, QualMatchRecord qmr) {
+            if (qmr.quant.isLazy() && qmr.isMatched()) return true;
             if (index >= seq.length()) return qmr.isMatched();
 
-            if (seq.charAt(index) == c) {
-                MatchRecord mr = new MatchRecord(index, 1);
+            if (Character.codePointAt(seq, index) == c) {
+                MatchRecord mr = new MatchRecord(index, Character.charCount(c));
                 if (qmr.addMatch(mr))
-                    return matchRec(seq, index+1, qmr);
+                    return matchRec(seq, index + mr.matchLen, qmr);
                 else
                     return qmr.isMatched();
             } else {
@@ -366,10 +1001,16 @@ public class Pattern {
 
             return null;
         }
+
+        long footprint() {
+            return align(OBJECT_HEADER + 2 * REFERENCE + 4);
+        }
     }
 
     static class GroupNode extends BaseNode {
         final List<BaseNode> children;
+        // group number in order of opening parentheses, the root is 0
+        int number;
 
         GroupNode(BaseNode parent) {
             super(parent);
@@ -380,7 +1021,7 @@ public class Pattern {
             children.add(child);
         }
 
-        private boolean matchRec2(CharSequence seq, int index, List<BaseNode> tokens, MatchRecord mr) {
+        boolean matchRec2(CharSequence seq, int index, List<BaseNode> tokens, MatchRecord mr) {
             QualMatchRecord qmr;
             boolean hasBacktracked;
 
@@ -408,16 +1049,23 @@ public class Pattern {
 
         }
 
+        MatchRecord matchOnce(CharSequence seq, int index) {
+            MatchRecord mr = new MatchRecord(this, index);
+            return matchRec2(seq, index, children, mr) ? mr : null;
+        }
+
         public boolean matchRec(CharSequence seq, int index, QualMatchRecord qmr) {
-            if (index >= seq.length()) return qmr.isMatched();
+            if (qmr.quant.isLazy() && qmr.isMatched()) return true;
+            // children may all be optional, so a group can match at the end
             boolean isMatched;
-            MatchRecord mr = new MatchRecord(index, 0);
+            MatchRecord mr = new MatchRecord(this, index);
 
             isMatched = matchRec2(seq, index, children, mr);
 
             if (isMatched) {
-                if (qmr.addMatch(mr) && mr.matchLen > 0)
-                    return matchRec(seq, index+mr.matchLen, qmr);
+                // an empty repetition ends the loop, as in java.util.regex
+                if (qmr.addMatch(mr) && qmr.quant.isRepeated() && mr.length() > 0)
+                    return matchRec(seq, mr.matchEnd(), qmr);
                 else
                     return qmr.isMatched();
             } else {
@@ -432,6 +1080,16 @@ public class Pattern {
 
             return null;
         }
+
+        long footprint() {
+            // node, ArrayList and its backing array
+            long size = align(OBJECT_HEADER + 3 * REFERENCE) + align(OBJECT_HEADER + REFERENCE + 8) +
+                    align(ARRAY_HEADER + Math.max(10, children.size()) * REFERENCE);
+            for (BaseNode child : children) {
+                size += child.footprint();
+            }
+            return size;
+        }
     }
 
     /*
@@ -443,21 +1101,29 @@ public class Pattern {
         final int matchLoc;
         int matchLen;
         final List<QualMatchRecord> recordList;
+        // group whose children are matched by recordList, null for a character
+        final GroupNode group;
 
         public MatchRecord(int matchLoc, int matchLen) {
             this.matchLoc = matchLoc;
             this.matchLen = matchLen;
+            this.group = null;
+            recordList = new ArrayList<>();
+        }
+
+        MatchRecord(GroupNode group, int matchLoc) {
+            this.matchLoc = matchLoc;
+            this.matchLen = 0;
+            this.group = group;
             recordList = new ArrayList<>();
         }
 
         public void addQualMatch(QualMatchRecord qmr) {
             recordList.add(qmr);
-            matchLen += qmr.matchLen();
         }
 
         public void removeQualMatch(QualMatchRecord qmr) {
             recordList.remove(qmr);
-            matchLen -= qmr.matchLen();
         }
 
         public int matchEnd() {
@@ -468,34 +1134,28 @@ public class Pattern {
             }
         }
 
-        public boolean backtrack(CharSequence seq) {
-            if (recordList.isEmpty()) return false;
+        int length() {
+            return matchEnd() - matchLoc;
+        }
 
-            boolean hasBacktracked;
-            Stack<BaseNode> nodeStack = new Stack<>();
+        /*
+         * Moves to the next way the children of the group can match, in the
+         * order a backtracking search tries them. The last child that can
+         * change is changed and the children after it are matched again.
+         */
+        public boolean backtrack(CharSequence seq) {
+            if (group == null) return false;
 
-            for (int i=recordList.size()-1; i >= 0; i--) {
+            for (int i = recordList.size() - 1; i >= 0; i--) {
                 QualMatchRecord qmr = recordList.get(i);
-                hasBacktracked = qmr.backtrack(seq);
-
-                if (hasBacktracked) {
-                    //match removed records
-                    while(!nodeStack.isEmpty()) {
-                        BaseNode node = nodeStack.pop();
-                        qmr = node.match(seq, qmr.matchEnd());
-                        if (qmr == null) {
-                            return false;
-                        }
+                while (qmr.backtrack(seq)) {
+                    List<BaseNode> rest = group.children.subList(i + 1, group.children.size());
+                    if (group.matchRec2(seq, qmr.matchEnd(), rest, this)) {
+                        return true;
                     }
-                    return true;
-                } else {
-                    //remove record
-                    this.removeQualMatch(qmr);
-                    nodeStack.add(qmr.node);
                 }
-
+                removeQualMatch(qmr);
             }
-
             return false;
         }
     }
@@ -523,6 +1183,7 @@ public class Pattern {
             switch(quant) {
                 case NONE:
                 case QUESTIONMARK:
+                case QUESTIONMARK_LAZY:
                     if (matches.size() > 0) {
                         return false;
                     }
@@ -537,43 +1198,46 @@ public class Pattern {
 
         public boolean backtrack(CharSequence seq) {
             MatchRecord mr;
-            boolean hasBacktracked;
-
-            if (quant == QuantType.NONE || quant == QuantType.PLUS) {
-                if (matches.isEmpty()) return false;
-
-                mr = matches.peek();
-                hasBacktracked = mr.backtrack(seq);
 
-                if (hasBacktracked) {
-                    return true;
-                } else if (matches.size() > 1) {
-                    matches.pop();
-                    return true;
-                } else {
-                    return false;
+            if (quant.isLazy()) {
+                // fewest repetitions were tried first, try one more unless
+                // the last one is empty
+                if (matches.isEmpty() || (quant.isRepeated() && matches.peek().length() > 0)) {
+                    mr = node.matchOnce(seq, matchEnd());
+                    if (mr != null) {
+                        matches.add(mr);
+                        return true;
+                    }
                 }
-            } else {
-                if (matches.isEmpty()) return false;
-
+            }
+            // otherwise rematch the last repetition, dropping the ones that
+            // cannot be rematched
+            while (!matches.isEmpty()) {
                 mr = matches.peek();
-                hasBacktracked = mr.backtrack(seq);
-
-                if (hasBacktracked) {
-                    return true;
-                } else {
-                    matches.pop();
+                if (mr.backtrack(seq)) {
+                    if (!quant.isLazy() && quant.isRepeated() && mr.length() > 0) {
+                        // greedy repetitions continue after the new match
+                        node.matchRec(seq, matchEnd(), this);
+                    }
                     return true;
                 }
+                matches.pop();
+                // a greedy expression that stops one repetition earlier, a
+                // lazy one had already tried that
+                if (!quant.isLazy() && isMatched()) return true;
             }
+            return false;
         }
 
         public boolean isMatched() {
             switch(quant) {
                 case STAR:
                 case QUESTIONMARK:
+                case STAR_LAZY:
+                case QUESTIONMARK_LAZY:
                     return true;
                 case PLUS:
+                case PLUS_LAZY:
                 case NONE:
                 default:
                     return matches.size() > 0;
@@ -30,4 +30,26 @@ public class PatternSyntaxException extends Exception {
     public String getMessage() {
         return "Syntax Error near index (" + index + ") for expression " + regex + ": " + message;
     }
+
+    /**
+     * Returns the description of the error without the expression.
+     */
+    public String getDescription() {
+        return message;
+    }
+
+    /**
+     * Returns the erroneous expression.
+     */
+    public String getPattern() {
+        return regex;
+    }
+
+    /**
+     * Returns the index in the expression near which the error was found,
+     * the length of the expression if it ended too early.
+     */
+    public int getIndex() {
+        return index;
+    }
 }
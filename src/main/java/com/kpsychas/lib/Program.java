@@ -0,0 +1,1014 @@
+/*
+    Copyright (C) 2017  Konstantinos Psychas <kpsychas@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.kpsychas.lib;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Program:
+ * flat instruction encoding of a parsed expression (Thompson construction).
+ * Every instruction is a single int, the low bits hold the opcode and the
+ * remaining bits its argument. Instructions that branch fall through to
+ * pc+1 for their second alternative.
+ *
+ * Programs are immutable and interned, patterns that compile to the same
+ * instructions share a single instance.
+ */
+final class Program {
+    static final int CHAR = 0;          // consume character arg
+    static final int CLASS = 1;         // consume a character of classes[arg]
+    static final int SPLIT_NEXT = 2;    // branch, prefer pc+1 over arg
+    static final int SPLIT_JUMP = 3;    // branch, prefer arg over pc+1
+    static final int JMP = 4;           // continue at arg
+    static final int SAVE = 5;          // record position in capture slot arg
+    static final int MATCH = 6;         // accept, arg is the token number
+    static final int EMPTY = 7;         // skip the next instruction if slot arg holds the position
+
+    private static final int OP_BITS = 4;
+    private static final int OP_MASK = (1 << OP_BITS) - 1;
+
+    private static final Interner<Program> interned = new Interner<>();
+
+    final int[] code;
+    final CharClass[] classes;
+    final int groupCount;
+    // capture slots followed by one slot per loop that may repeat empty
+    final int slotCount;
+    private final int hash;
+
+    // Facts that hold for every match, used to reject a sequence before
+    // running the program. maxLength is -1 when unbounded, firstChars is
+    // null when the empty string matches and required is null when no
+    // literal has to appear in a match.
+    final int minLength;
+    final int maxLength;
+    final CharClass firstChars;
+    final String required;
+
+    private Program(int[] code, CharClass[] classes, int groupCount,
+                    int minLength, int maxLength, CharClass firstChars, String required) {
+        this.code = code;
+        this.classes = classes;
+        this.groupCount = groupCount;
+        int slots = 2 * (groupCount + 1);
+        for (int instr : code) {
+            if (op(instr) == SAVE) {
+                slots = Math.max(slots, arg(instr) + 1);
+            }
+        }
+        this.slotCount = slots;
+        this.hash = 31 * Arrays.hashCode(code) + Arrays.hashCode(classes);
+        this.minLength = minLength;
+        this.maxLength = maxLength;
+        this.firstChars = firstChars;
+        this.required = required;
+    }
+
+    /**
+     * Returns the shared instance of a program equal to prog.
+     */
+    static Program intern(Program prog) {
+        return interned.intern(prog);
+    }
+
+    static int op(int instr) {
+        return instr & OP_MASK;
+    }
+
+    static int arg(int instr) {
+        return instr >>> OP_BITS;
+    }
+
+    static Program compile(Pattern.GroupNode root) {
+        Compiler c = new Compiler();
+        c.emitGroup(root);
+        c.emit(MATCH, 0);
+        int groups = c.group - 1;
+        int min = minLength(root);
+        RunBuilder runs = new RunBuilder();
+        required(root, runs);
+        runs.cut();
+
+        return new Program(c.toCode(groups), c.classes.toArray(new CharClass[0]), groups, min, maxLength(root),
+                (min > 0) ? CharClass.intern(firstChars(root)) : null,
+                runs.best.isEmpty() ? null : runs.best);
+    }
+
+    /**
+     * Compiles the expression read from right to left. The program matches
+     * the characters of a sequence in reverse order, starting from the end
+     * of a match.
+     */
+    static Program compileReverse(Pattern.GroupNode root) {
+        Compiler c = new Compiler();
+        c.reverse = true;
+        c.emitGroup(root);
+        c.emit(MATCH, 0);
+        return new Program(c.toCode(c.group - 1), c.classes.toArray(new CharClass[0]), c.group - 1, 0, -1, null, null);
+    }
+
+    /**
+     * Compiles a list of expressions into a single program that accepts
+     * with token k when the k-th expression matches. Alternatives are tried
+     * in list order.
+     */
+    static Program compile(List<Pattern.GroupNode> roots) {
+        Compiler c = new Compiler();
+        int groups = 0;
+        for (int k = 0; k < roots.size(); k++) {
+            int split = -1;
+            if (k < roots.size() - 1) {
+                split = c.emit(SPLIT_NEXT, 0);
+            }
+            c.group = 0;
+            c.emitGroup(roots.get(k));
+            c.emit(MATCH, k);
+            groups = Math.max(groups, c.group - 1);
+            if (split >= 0) {
+                c.patch(split, c.pc());
+            }
+        }
+        return new Program(c.toCode(groups), c.classes.toArray(new CharClass[0]), groups, 0, -1, null, null);
+    }
+
+    /**
+     * Returns true if the program matches the sequence starting from the
+     * character at position index. Strings and array backed buffers are
+     * read through their own loops so that each input type has a
+     * monomorphic call site.
+     */
+    boolean matches(CharSequence seq, int index) {
+        if (seq instanceof String) {
+            return matches((String) seq, index);
+        }
+        if (seq instanceof CharBuffer && ((CharBuffer) seq).hasArray()) {
+            CharBuffer b = (CharBuffer) seq;
+            int base = b.arrayOffset() + b.position();
+            return matches(b.array(), base + index, base + b.remaining());
+        }
+        if (!mayMatch(seq, index)) return false;
+
+        Threads t = new Threads(this);
+        for (int i = index; i < seq.length(); ) {
+            if (t.isMatched()) return true;
+            if (t.isDead()) return false;
+            int c = Character.codePointAt(seq, i);
+            i += Character.charCount(c);
+            t.step(c);
+        }
+        return t.isMatched();
+    }
+
+    boolean matches(String s, int index) {
+        if (!mayMatch(s, index)) return false;
+
+        Threads t = new Threads(this);
+        for (int i = index; i < s.length(); ) {
+            if (t.isMatched()) return true;
+            if (t.isDead()) return false;
+            int c = s.codePointAt(i);
+            i += Character.charCount(c);
+            t.step(c);
+        }
+        return t.isMatched();
+    }
+
+    /**
+     * Returns true if the program matches a[from..end) starting from its
+     * first character.
+     */
+    boolean matches(char[] a, int from, int end) {
+        int first = (from < end) ? Character.codePointAt(a, from, end) : -1;
+        if (!mayMatch(end - from, first) || !containsRequired(a, from, end)) {
+            return false;
+        }
+
+        Threads t = new Threads(this);
+        for (int i = from; i < end; ) {
+            if (t.isMatched()) return true;
+            if (t.isDead()) return false;
+            int c = Character.codePointAt(a, i, end);
+            i += Character.charCount(c);
+            t.step(c);
+        }
+        return t.isMatched();
+    }
+
+    /**
+     * Returns true if the program matches a[from..end) starting from its
+     * first byte. Bytes are read as ISO-8859-1 characters.
+     */
+    boolean matches(byte[] a, int from, int end) {
+        if (!mayMatch(end - from, (from < end) ? a[from] & 0xff : -1) || !containsRequired(a, from, end)) {
+            return false;
+        }
+
+        Threads t = new Threads(this);
+        for (int i = from; i < end; i++) {
+            if (t.isMatched()) return true;
+            if (t.isDead()) return false;
+            t.step(a[i] & 0xff);
+        }
+        return t.isMatched();
+    }
+
+    /**
+     * Matches the sequence starting from the character at position index
+     * and returns the capture slots of the match, or null if there is none.
+     * Slots 2g and 2g+1 hold where group g starts and ends, -1 if the group
+     * took no part in the match. Group 0 is the whole match.
+     *
+     * Every thread carries its own copy of the slots and threads are kept
+     * in priority order, so the match reported is the one a backtracking
+     * search would find first while time stays linear in the input. A loop
+     * whose last repetition matched empty is left, the same as in
+     * java.util.regex.
+     */
+    int[] captures(CharSequence seq, int index) {
+        int[] slots = new int[2 * (groupCount + 1)];
+        return new Captures(this).run(seq, index, slots) ? slots : null;
+    }
+
+    /**
+     * Searches seq from position from for the leftmost match and returns
+     * where it ends, or -1 if there is none. A match attempt is started at
+     * every position, attempts started earlier have priority and once one
+     * of them matches the later ones are dropped.
+     */
+    int findEnd(CharSequence seq, int from) {
+        return findEnd(seq, from, new Threads(this));
+    }
+
+    /* Same as findEnd(seq, from) reusing the threads t of this program */
+    int findEnd(CharSequence seq, int from, Threads t) {
+        int len = seq.length();
+        if (required != null && !containsRequired(seq, from, len)) return -1;
+
+        t.reset();
+        int end = -1;
+        int i = from;
+        while (true) {
+            int k = t.matchIndex();
+            if (k >= 0) {
+                // threads after the match have lower priority
+                end = i;
+                t.cut(k);
+            }
+            if (i >= len || (end >= 0 && t.isDead())) return end;
+
+            int c = Character.codePointAt(seq, i);
+            i += Character.charCount(c);
+            t.step(c);
+            if (end < 0) {
+                if (t.isDead() && firstChars != null) {
+                    while (i < len && !firstChars.contains(c = Character.codePointAt(seq, i))) {
+                        i += Character.charCount(c);
+                    }
+                }
+                t.addStart();
+            }
+        }
+    }
+
+    /**
+     * Runs a reverse program backwards from position end and returns the
+     * smallest position, not before from, where a match ending at end
+     * starts or -1 if there is none.
+     */
+    int findStart(CharSequence seq, int end, int from) {
+        return findStart(seq, end, from, new Threads(this));
+    }
+
+    /* Same as findStart(seq, end, from) reusing the threads t of this program */
+    int findStart(CharSequence seq, int end, int from, Threads t) {
+        t.reset();
+        int start = -1;
+        for (int i = end; ; ) {
+            if (t.isMatched()) start = i;
+            if (t.isDead() || i <= from) return start;
+            int c = codePointBefore(seq, i, from);
+            i -= Character.charCount(c);
+            t.step(c);
+        }
+    }
+
+    /* Code point that ends at index, a surrogate pair is not split at from */
+    private static int codePointBefore(CharSequence seq, int index, int from) {
+        char low = seq.charAt(index - 1);
+        if (Character.isLowSurrogate(low) && index - 2 >= from) {
+            char high = seq.charAt(index - 2);
+            if (Character.isHighSurrogate(high)) {
+                return Character.toCodePoint(high, low);
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Cheap test that returns false if the program cannot match the sequence
+     * starting from position index.
+     */
+    boolean mayMatch(CharSequence seq, int index) {
+        int len = seq.length();
+        if (!mayMatch(len - index, (index < len) ? Character.codePointAt(seq, index) : -1)) return false;
+        return !scansRequired() || containsRequired(seq, index, limit(index, len));
+    }
+
+    /*
+     * The required literal is looked for only when matches have a bounded
+     * length. Scanning the rest of the input for every start would make
+     * matching at every position quadratic, while the program itself stops
+     * where its threads die.
+     */
+    private boolean scansRequired() {
+        return required != null && maxLength >= 0;
+    }
+
+    /* Checks the length left and the first character, which is -1 at the end */
+    private boolean mayMatch(int remaining, int first) {
+        if (remaining < minLength) return false;
+        return firstChars == null || firstChars.contains(first);
+    }
+
+    /* End of the region a match starting at index can reach */
+    private int limit(int index, int end) {
+        return (int) Math.min(end, (long) index + maxLength);
+    }
+
+    /* Returns true if the required literal appears in seq[from..limit) */
+    private boolean containsRequired(CharSequence seq, int from, int limit) {
+        if (seq instanceof String && limit == seq.length()) {
+            return ((String) seq).indexOf(required, from) >= 0;
+        }
+        char first = required.charAt(0);
+        for (int i = from; i + required.length() <= limit; i++) {
+            if (seq.charAt(i) != first) continue;
+            int k = 1;
+            while (k < required.length() && seq.charAt(i + k) == required.charAt(k)) k++;
+            if (k == required.length()) return true;
+        }
+        return false;
+    }
+
+    private boolean containsRequired(char[] a, int from, int end) {
+        if (!scansRequired()) return true;
+
+        int limit = limit(from, end);
+        char first = required.charAt(0);
+        for (int i = from; i + required.length() <= limit; i++) {
+            if (a[i] != first) continue;
+            int k = 1;
+            while (k < required.length() && a[i + k] == required.charAt(k)) k++;
+            if (k == required.length()) return true;
+        }
+        return false;
+    }
+
+    private boolean containsRequired(byte[] a, int from, int end) {
+        if (!scansRequired()) return true;
+
+        int limit = limit(from, end);
+        char first = required.charAt(0);
+        for (int i = from; i + required.length() <= limit; i++) {
+            if ((a[i] & 0xff) != first) continue;
+            int k = 1;
+            while (k < required.length() && (a[i + k] & 0xff) == required.charAt(k)) k++;
+            if (k == required.length()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the consuming instruction at pc accepts character c.
+     */
+    boolean accepts(int pc, int c) {
+        int instr = code[pc];
+        if (op(instr) == CHAR) {
+            return arg(instr) == c;
+        } else {
+            return classes[arg(instr)].contains(c);
+        }
+    }
+
+    /* True if the consuming instruction at pc accepts a code point in [from..to] */
+    boolean acceptsAny(int pc, int from, int to) {
+        int instr = code[pc];
+        if (op(instr) == CHAR) {
+            return arg(instr) >= from && arg(instr) <= to;
+        } else {
+            return classes[arg(instr)].intersects(from, to);
+        }
+    }
+
+    /**
+     * Follows all empty transitions starting at pc and appends the reached
+     * consuming and MATCH instructions to list in priority order.
+     * Instructions already marked in onList are skipped.
+     * Returns the new size of list.
+     */
+    int closure(int pc, int[] stack, boolean[] onList, int[] list, int size) {
+        int top = 0;
+        stack[top++] = pc;
+        while (top > 0) {
+            pc = stack[--top];
+            if (onList[pc]) continue;
+            onList[pc] = true;
+
+            int instr = code[pc];
+            switch (op(instr)) {
+                case JMP:
+                    stack[top++] = arg(instr);
+                    break;
+                case SPLIT_NEXT:
+                    stack[top++] = arg(instr);
+                    stack[top++] = pc + 1;
+                    break;
+                case SPLIT_JUMP:
+                    stack[top++] = pc + 1;
+                    stack[top++] = arg(instr);
+                    break;
+                case SAVE:
+                case EMPTY:
+                    // the loop exit an EMPTY skips to is reachable from the loop's split
+                    stack[top++] = pc + 1;
+                    break;
+                default:
+                    list[size++] = pc;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Same as closure but SAVE instructions record position pos in a copy
+     * of slots and EMPTY instructions leave a loop that repeated empty.
+     * Reached instructions are listed by key, see Loops, and their slots are
+     * stored at threadSlots[key * slots.length]. The slots are restored
+     * before return.
+     */
+    private int closure(int pc, int pos, int[] slots, int[] stack, boolean[] onList, Loops loops,
+                        int[] list, int[] threadSlots, int size) {
+        int top = 0;
+        stack[top++] = pc;
+        while (top > 0) {
+            pc = stack[--top];
+            if (pc < 0) {
+                // restore entry, slot number complemented above its old value
+                slots[~pc] = stack[--top];
+                continue;
+            }
+            int key = (loops == null) ? pc : loops.key(pc, pos, slots);
+            if (onList[key]) continue;
+            onList[key] = true;
+
+            int instr = code[pc];
+            switch (op(instr)) {
+                case JMP:
+                    stack[top++] = arg(instr);
+                    break;
+                case SPLIT_NEXT:
+                    stack[top++] = arg(instr);
+                    stack[top++] = pc + 1;
+                    break;
+                case SPLIT_JUMP:
+                    stack[top++] = pc + 1;
+                    stack[top++] = arg(instr);
+                    break;
+                case SAVE:
+                    stack[top++] = slots[arg(instr)];
+                    stack[top++] = ~arg(instr);
+                    stack[top++] = pc + 1;
+                    slots[arg(instr)] = pos;
+                    break;
+                case EMPTY:
+                    stack[top++] = (slots[arg(instr)] == pos) ? pc + 2 : pc + 1;
+                    break;
+                default:
+                    System.arraycopy(slots, 0, threadSlots, key * slots.length, slots.length);
+                    list[size++] = key;
+            }
+        }
+        return size;
+    }
+
+    /*
+     * Loops:
+     * nesting of the loops that may repeat empty, the body of a loop lies
+     * between the SAVE of its slot and its EMPTY. An instruction in a body
+     * is followed once for every loop around it whose repetition started
+     * at the current position, since only those leave at their EMPTY.
+     */
+    private static final class Loops {
+        // innermost loop around every pc and the loop around every loop,
+        // loops are named by their slot, -1 when there is none
+        final int[] inner;
+        final int[] outer;
+        final int[] depth;
+        final int modes;
+
+        Loops(int[] code, int firstLoop, int slotCount) {
+            inner = new int[code.length];
+            outer = new int[slotCount];
+            depth = new int[slotCount];
+            int current = -1;
+            int max = 0;
+            for (int pc = 0; pc < code.length; pc++) {
+                int instr = code[pc];
+                inner[pc] = current;
+                if (op(instr) == SAVE && arg(instr) >= firstLoop) {
+                    outer[arg(instr)] = current;
+                    depth[arg(instr)] = (current < 0) ? 1 : depth[current] + 1;
+                    max = Math.max(max, depth[arg(instr)]);
+                    current = arg(instr);
+                } else if (op(instr) == EMPTY) {
+                    current = outer[arg(instr)];
+                }
+            }
+            modes = max + 1;
+        }
+
+        /* Index of pc and the outermost loop around it that started at pos */
+        int key(int pc, int pos, int[] slots) {
+            int mode = 0;
+            for (int loop = inner[pc]; loop >= 0; loop = outer[loop]) {
+                if (slots[loop] == pos) {
+                    mode = depth[loop];
+                }
+            }
+            return pc * modes + mode;
+        }
+    }
+
+    /*
+     * Captures:
+     * the thread lists of captures, kept so that one instance can match at
+     * many positions without allocating.
+     */
+    static final class Captures {
+        private final Program prog;
+        private final Loops loops;
+        private final int ns;
+        private final int modes;
+        private final int[] stack;
+        private final boolean[] onList;
+        // threads are listed by key, the pc times modes plus the loop mode,
+        // and the slots of a thread are kept at cslots[key * ns]
+        private int[] clist;
+        private int[] nlist;
+        private int[] cslots;
+        private int[] nslots;
+        private final int[] cur;
+
+        Captures(Program prog) {
+            int len = prog.code.length;
+            this.prog = prog;
+            ns = prog.slotCount;
+            int groupSlots = 2 * (prog.groupCount + 1);
+            loops = (ns > groupSlots) ? new Loops(prog.code, groupSlots, ns) : null;
+            modes = (loops == null) ? 1 : loops.modes;
+            stack = new int[3 * len * modes + 1];
+            onList = new boolean[len * modes];
+            clist = new int[len * modes];
+            nlist = new int[len * modes];
+            cslots = new int[len * modes * ns];
+            nslots = new int[len * modes * ns];
+            cur = new int[ns];
+        }
+
+        /*
+         * Matches from position index and copies the capture slots of the
+         * match to slots, which holds two slots per group. Returns false
+         * if there is no match.
+         */
+        boolean run(CharSequence seq, int index, int[] slots) {
+            if (!prog.mayMatch(seq, index)) return false;
+
+            boolean matched = false;
+            Arrays.fill(cur, -1);
+            Arrays.fill(onList, false);
+            int size = prog.closure(0, index, cur, stack, onList, loops, clist, cslots, 0);
+            for (int i = index, next; size > 0; i = next) {
+                int c = (i < seq.length()) ? Character.codePointAt(seq, i) : -1;
+                next = i + Character.charCount(c);
+                int nsize = 0;
+                Arrays.fill(onList, false);
+                for (int k = 0; k < size; k++) {
+                    int key = clist[k];
+                    int pc = key / modes;
+                    if (op(prog.code[pc]) == MATCH) {
+                        // threads after the match have lower priority
+                        System.arraycopy(cslots, key * ns, slots, 0, slots.length);
+                        matched = true;
+                        break;
+                    }
+                    if (c >= 0 && prog.accepts(pc, c)) {
+                        System.arraycopy(cslots, key * ns, cur, 0, ns);
+                        nsize = prog.closure(pc + 1, next, cur, stack, onList, loops, nlist, nslots, nsize);
+                    }
+                }
+                int[] tmp = clist;
+                clist = nlist;
+                nlist = tmp;
+                tmp = cslots;
+                cslots = nslots;
+                nslots = tmp;
+                size = nsize;
+            }
+            return matched;
+        }
+    }
+
+    /*
+     * Threads:
+     * instructions alive after consuming part of the input. All alternatives
+     * are followed in parallel so time is linear in the length of the input.
+     */
+    static final class Threads {
+        private final Program prog;
+        private final int[] stack;
+        private final boolean[] onList;
+        private int[] clist;
+        private int[] nlist;
+        private int size;
+
+        Threads(Program prog) {
+            int len = prog.code.length;
+            this.prog = prog;
+            stack = new int[2 * len + 1];
+            onList = new boolean[len];
+            clist = new int[len];
+            nlist = new int[len];
+            size = prog.closure(0, stack, onList, clist, 0);
+        }
+
+        boolean isMatched() {
+            for (int k = 0; k < size; k++) {
+                if (op(prog.code[clist[k]]) == MATCH) return true;
+            }
+            return false;
+        }
+
+        boolean isDead() {
+            return size == 0;
+        }
+
+        /* Position in the list of the first thread that matched or -1 */
+        int matchIndex() {
+            for (int k = 0; k < size; k++) {
+                if (op(prog.code[clist[k]]) == MATCH) return k;
+            }
+            return -1;
+        }
+
+        /* Drops the thread at position k and all threads after it */
+        void cut(int k) {
+            size = k;
+        }
+
+        /* True if a thread waits for a character it can accept */
+        boolean isWaiting() {
+            return acceptsAny(0, Character.MAX_CODE_POINT);
+        }
+
+        /* True if a thread accepts a code point in [from..to] */
+        boolean acceptsAny(int from, int to) {
+            for (int k = 0; k < size; k++) {
+                int pc = clist[k];
+                if (op(prog.code[pc]) != MATCH && prog.acceptsAny(pc, from, to)) return true;
+            }
+            return false;
+        }
+
+        /* Copy of the thread list in priority order */
+        int[] save() {
+            return Arrays.copyOf(clist, size);
+        }
+
+        /* Replaces the thread list with one returned by save */
+        void restore(int[] threads) {
+            System.arraycopy(threads, 0, clist, 0, threads.length);
+            size = threads.length;
+        }
+
+        /* Drops all threads and starts over at the first instruction */
+        void reset() {
+            Arrays.fill(onList, false);
+            size = prog.closure(0, stack, onList, clist, 0);
+        }
+
+        /* Adds a new attempt at the current position with the lowest priority */
+        void addStart() {
+            size = prog.closure(0, stack, onList, clist, size);
+        }
+
+        void step(int c) {
+            int nsize = 0;
+            Arrays.fill(onList, false);
+            for (int k = 0; k < size; k++) {
+                int pc = clist[k];
+                if (op(prog.code[pc]) != MATCH && prog.accepts(pc, c)) {
+                    nsize = prog.closure(pc + 1, stack, onList, nlist, nsize);
+                }
+            }
+            int[] tmp = clist;
+            clist = nlist;
+            nlist = tmp;
+            size = nsize;
+        }
+    }
+
+    /**
+     * Returns an estimate in bytes of the memory retained by the program.
+     */
+    long footprint() {
+        long size = Pattern.align(Pattern.OBJECT_HEADER + 4 * Pattern.REFERENCE + 5 * 4) +
+                Pattern.align(Pattern.ARRAY_HEADER + 4L * code.length) +
+                Pattern.align(Pattern.ARRAY_HEADER + (long) Pattern.REFERENCE * classes.length);
+        for (CharClass cc : classes) {
+            size += cc.footprint();
+        }
+        if (firstChars != null) {
+            size += firstChars.footprint();
+        }
+        if (required != null) {
+            size += Pattern.align(Pattern.OBJECT_HEADER + Pattern.REFERENCE + 8) +
+                    Pattern.align(Pattern.ARRAY_HEADER + required.length());
+        }
+        return size;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Program)) return false;
+        Program other = (Program) o;
+        return hash == other.hash && groupCount == other.groupCount &&
+                Arrays.equals(code, other.code) && Arrays.equals(classes, other.classes);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    private static int minLength(Pattern.BaseNode node) {
+        if (node.mod.isOptional()) {
+            return 0;
+        }
+        if (node instanceof Pattern.LiteralNode) {
+            return Character.charCount(((Pattern.LiteralNode) node).c);
+        }
+        if (node instanceof Pattern.RangeNode) {
+            return 1;
+        }
+        int min = 0;
+        for (Pattern.BaseNode child : ((Pattern.GroupNode) node).children) {
+            min += minLength(child);
+        }
+        return min;
+    }
+
+    private static int maxLength(Pattern.BaseNode node) {
+        int max;
+        if (node instanceof Pattern.LiteralNode) {
+            max = Character.charCount(((Pattern.LiteralNode) node).c);
+        } else if (node instanceof Pattern.RangeNode) {
+            // a supplementary code point takes two chars
+            int[] ranges = CharClass.of((Pattern.RangeNode) node).ranges;
+            max = (ranges.length > 0 && ranges[ranges.length - 1] > Character.MIN_SUPPLEMENTARY_CODE_POINT) ? 2 : 1;
+        } else {
+            max = 0;
+            for (Pattern.BaseNode child : ((Pattern.GroupNode) node).children) {
+                int m = maxLength(child);
+                if (m < 0) return -1;
+                max += m;
+            }
+        }
+        if (max > 0 && node.mod.isRepeated()) {
+            return -1;
+        }
+        return max;
+    }
+
+    /* Characters a match of the group can start with, up to its first non optional child */
+    private static CharClass firstChars(Pattern.GroupNode g) {
+        CharClass first = CharClass.empty();
+        for (Pattern.BaseNode child : g.children) {
+            if (child instanceof Pattern.GroupNode) {
+                first = first.union(firstChars((Pattern.GroupNode) child));
+            } else if (child instanceof Pattern.RangeNode) {
+                first = first.union(CharClass.of((Pattern.RangeNode) child));
+            } else {
+                first = first.union(CharClass.of(((Pattern.LiteralNode) child).c));
+            }
+            if (minLength(child) > 0) break;
+        }
+        return first;
+    }
+
+    /*
+     * Collects runs of literals that every match contains. A group or a
+     * literal that must match once continues the current run, anything
+     * optional ends it.
+     */
+    private static void required(Pattern.GroupNode g, RunBuilder runs) {
+        for (Pattern.BaseNode child : g.children) {
+            if (child.mod == Pattern.QuantType.NONE) {
+                if (child instanceof Pattern.GroupNode) {
+                    required((Pattern.GroupNode) child, runs);
+                } else if (child instanceof Pattern.LiteralNode) {
+                    runs.add(((Pattern.LiteralNode) child).c);
+                } else {
+                    runs.cut();
+                }
+            } else if (child.mod == Pattern.QuantType.PLUS || child.mod == Pattern.QuantType.PLUS_LAZY) {
+                if (child instanceof Pattern.GroupNode) {
+                    runs.cut();
+                    required((Pattern.GroupNode) child, runs);
+                    runs.cut();
+                } else if (child instanceof Pattern.LiteralNode) {
+                    // last repetition ends a run, first one starts the next
+                    runs.add(((Pattern.LiteralNode) child).c);
+                    runs.cut();
+                    runs.add(((Pattern.LiteralNode) child).c);
+                } else {
+                    runs.cut();
+                }
+            } else {
+                runs.cut();
+            }
+        }
+    }
+
+    private static class RunBuilder {
+        final StringBuilder run = new StringBuilder();
+        String best = "";
+
+        void add(int c) {
+            run.appendCodePoint(c);
+        }
+
+        void cut() {
+            if (run.length() > best.length()) {
+                best = run.toString();
+            }
+            run.setLength(0);
+        }
+    }
+
+    /* Emits instructions for the node tree */
+    private static class Compiler {
+        int[] code = new int[16];
+        int size = 0;
+        int group = 0;
+        boolean reverse = false;
+        final List<CharClass> classes = new ArrayList<>();
+        // pcs of instructions that use a loop slot, numbered from 0 until
+        // the number of groups is known
+        int[] loopPcs = new int[4];
+        int loopPcCount = 0;
+        int loops = 0;
+
+        int pc() {
+            return size;
+        }
+
+        int emit(int op, int arg) {
+            if (size == code.length) {
+                code = Arrays.copyOf(code, 2 * size);
+            }
+            code[size] = (arg << OP_BITS) | op;
+            return size++;
+        }
+
+        void patch(int pc, int arg) {
+            code[pc] = (arg << OP_BITS) | op(code[pc]);
+        }
+
+        /* Instructions with loop slots placed after the slots of groupCount groups */
+        int[] toCode(int groupCount) {
+            for (int i = 0; i < loopPcCount; i++) {
+                patch(loopPcs[i], 2 * (groupCount + 1) + arg(code[loopPcs[i]]));
+            }
+            return Arrays.copyOf(code, size);
+        }
+
+        private void addLoopPc(int pc) {
+            if (loopPcCount == loopPcs.length) {
+                loopPcs = Arrays.copyOf(loopPcs, 2 * loopPcCount);
+            }
+            loopPcs[loopPcCount++] = pc;
+        }
+
+        /*
+         * Records where a repetition of node starts if the node can match
+         * empty, returns the loop number or -1.
+         */
+        int markLoop(Pattern.BaseNode node) {
+            if (!(node instanceof Pattern.GroupNode)) return -1;
+            for (Pattern.BaseNode child : ((Pattern.GroupNode) node).children) {
+                if (minLength(child) > 0) return -1;
+            }
+            addLoopPc(emit(SAVE, loops));
+            return loops++;
+        }
+
+        /* Leaves the loop after an empty repetition, the next instruction is the back edge */
+        void checkLoop(int loop) {
+            if (loop >= 0) {
+                addLoopPc(emit(EMPTY, loop));
+            }
+        }
+
+        void emitGroup(Pattern.GroupNode g) {
+            int slot = 2 * group++;
+            emit(SAVE, reverse ? slot + 1 : slot);
+            for (int i = 0; i < g.children.size(); i++) {
+                emitNode(g.children.get(reverse ? g.children.size() - 1 - i : i));
+            }
+            emit(SAVE, reverse ? slot : slot + 1);
+        }
+
+        void emitAtom(Pattern.BaseNode node) {
+            if (node instanceof Pattern.GroupNode) {
+                emitGroup((Pattern.GroupNode) node);
+            } else if (node instanceof Pattern.RangeNode) {
+                CharClass cc = CharClass.intern(CharClass.of((Pattern.RangeNode) node));
+                int k = classes.indexOf(cc);
+                if (k < 0) {
+                    classes.add(cc);
+                    k = classes.size() - 1;
+                }
+                emit(CLASS, k);
+            } else {
+                emit(CHAR, ((Pattern.LiteralNode) node).c);
+            }
+        }
+
+        void emitNode(Pattern.BaseNode node) {
+            int start = pc();
+            int split;
+            int loop;
+            switch (node.mod) {
+                case QUESTIONMARK:
+                    split = emit(SPLIT_NEXT, 0);
+                    emitAtom(node);
+                    patch(split, pc());
+                    break;
+                case STAR:
+                    split = emit(SPLIT_NEXT, 0);
+                    loop = markLoop(node);
+                    emitAtom(node);
+                    checkLoop(loop);
+                    emit(JMP, start);
+                    patch(split, pc());
+                    break;
+                case PLUS:
+                    loop = markLoop(node);
+                    emitAtom(node);
+                    checkLoop(loop);
+                    emit(SPLIT_JUMP, start);
+                    break;
+                case QUESTIONMARK_LAZY:
+                    split = emit(SPLIT_JUMP, 0);
+                    emitAtom(node);
+                    patch(split, pc());
+                    break;
+                case STAR_LAZY:
+                    split = emit(SPLIT_JUMP, 0);
+                    loop = markLoop(node);
+                    emitAtom(node);
+                    checkLoop(loop);
+                    emit(JMP, start);
+                    patch(split, pc());
+                    break;
+                case PLUS_LAZY:
+                    loop = markLoop(node);
+                    emitAtom(node);
+                    checkLoop(loop);
+                    emit(SPLIT_NEXT, start);
+                    break;
+                case NONE:
+                default:
+                    emitAtom(node);
+            }
+        }
+    }
+}
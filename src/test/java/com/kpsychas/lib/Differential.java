@@ -0,0 +1,275 @@
+package com.kpsychas.lib;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+
+/**
+ * Differential testing against java.util.regex, whose syntax is a superset
+ * of ours. Random patterns of the grammar are run on random inputs by both
+ * libraries with lookingAt semantics.
+ *
+ * Work is counted as calls to charAt on the input, which both libraries
+ * make for every character they look at, so a count that grows faster than
+ * the input is backtracking. Every run has a budget of calls after which
+ * it is abandoned.
+ */
+final class Differential {
+    private static final String[] ATOMS = {
+            "a", "b", "\u00e9", "\ud83d\ude00", "[ab]", "[^a]", "[a-c]", "[\u00e9-\ud83d\ude00]"
+    };
+    private static final String[] MODS = {"", "", "", "*", "+", "?", "*?", "+?", "??"};
+    private static final String[] CHARS = {"a", "b", "c", "\u00e9", "\ud83d\ude00"};
+    private static final int MAX_DEPTH = 3;
+
+    private final Random random;
+
+    Differential(long seed) {
+        random = new Random(seed);
+    }
+
+    /* Random pattern of the grammar */
+    String pattern() {
+        return sequence(0);
+    }
+
+    private String sequence(int depth) {
+        StringBuilder sb = new StringBuilder();
+        int n = 1 + random.nextInt(3);
+        for (int i = 0; i < n; i++) {
+            if (depth < MAX_DEPTH && random.nextInt(4) == 0) {
+                sb.append('(').append(sequence(depth + 1)).append(')');
+            } else {
+                sb.append(ATOMS[random.nextInt(ATOMS.length)]);
+            }
+            sb.append(MODS[random.nextInt(MODS.length)]);
+        }
+        return sb.toString();
+    }
+
+    /*
+     * Random input of up to maxLength code points. Half of the inputs repeat
+     * a single character and end with another one, the usual shape of inputs
+     * that make backtracking slow.
+     */
+    String input(int maxLength) {
+        int n = random.nextInt(maxLength + 1);
+        StringBuilder sb = new StringBuilder();
+        if (random.nextBoolean()) {
+            String c = CHARS[random.nextInt(CHARS.length)];
+            for (int i = 0; i < n; i++) {
+                sb.append(c);
+            }
+            return sb.append(CHARS[random.nextInt(CHARS.length)]).toString();
+        }
+        for (int i = 0; i < n; i++) {
+            sb.append(CHARS[random.nextInt(CHARS.length)]);
+        }
+        return sb.toString();
+    }
+
+    /* Thrown by CountingSequence when a run is over its budget */
+    static final class OverBudget extends RuntimeException {
+        OverBudget() {
+            super(null, null, false, false);
+        }
+    }
+
+    /* Counts calls to charAt */
+    static final class CountingSequence implements CharSequence {
+        private final CharSequence seq;
+        private final long limit;
+        long count = 0;
+
+        CountingSequence(CharSequence seq, long limit) {
+            this.seq = seq;
+            this.limit = limit;
+        }
+
+        @Override
+        public int length() {
+            return seq.length();
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (++count > limit) {
+                throw new OverBudget();
+            }
+            return seq.charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return seq.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return seq.toString();
+        }
+    }
+
+    /*
+     * Outcome of one case. Steps are calls to charAt and -1 when the run was
+     * over budget, times are in nanoseconds.
+     */
+    static final class Outcome {
+        final String pattern;
+        final String input;
+        // first disagreement between the libraries or null
+        String mismatch;
+        long javaSteps, javaNanos;
+        long matchSteps, matchNanos;
+        long treeSteps, treeNanos;
+        long linearSteps, linearNanos;
+
+        Outcome(String pattern, String input) {
+            this.pattern = pattern;
+            this.input = input;
+        }
+    }
+
+    /**
+     * Runs pattern on input with both libraries, with Pattern.matches and
+     * with a Matcher of each engine, and compares what they match.
+     */
+    static Outcome run(String pattern, String input, long limit) throws PatternSyntaxException {
+        Outcome o = new Outcome(pattern, input);
+        java.util.regex.Pattern jp = java.util.regex.Pattern.compile(pattern);
+        Pattern tree = Pattern.compile(pattern);
+        Pattern linear = Pattern.compile(pattern, Pattern.LINEAR_TIME);
+
+        String[] expected = null;
+        CountingSequence seq = new CountingSequence(input, limit);
+        long start = System.nanoTime();
+        try {
+            java.util.regex.Matcher jm = jp.matcher(seq);
+            if (jm.lookingAt()) {
+                expected = new String[jm.groupCount() + 1];
+                for (int g = 0; g < expected.length; g++) {
+                    expected[g] = jm.group(g);
+                }
+            }
+            o.javaSteps = seq.count;
+        } catch (OverBudget e) {
+            o.javaSteps = -1;
+        }
+        o.javaNanos = System.nanoTime() - start;
+
+        seq = new CountingSequence(input, limit);
+        start = System.nanoTime();
+        boolean matched = false;
+        try {
+            matched = tree.matches(seq);
+            o.matchSteps = seq.count;
+        } catch (OverBudget e) {
+            o.matchSteps = -1;
+        }
+        o.matchNanos = System.nanoTime() - start;
+        if (o.javaSteps >= 0 && o.matchSteps >= 0 && matched != (expected != null)) {
+            o.mismatch = "Pattern.matches is " + matched;
+        }
+
+        // java.util.regex does not restore groups inside a repetition that
+        // is given back or left empty, those are only compared between the
+        // two engines
+        boolean[] nested = new boolean[linear.program.groupCount + 1];
+        markNested(Pattern.parse(pattern, 0), false, nested);
+
+        seq = new CountingSequence(input, limit);
+        start = System.nanoTime();
+        Matcher m = null;
+        try {
+            m = tree.matcher(seq);
+            m.matches();
+            o.treeSteps = seq.count;
+        } catch (OverBudget e) {
+            m = null;
+            o.treeSteps = -1;
+        }
+        o.treeNanos = System.nanoTime() - start;
+        if (o.mismatch == null && o.javaSteps >= 0 && m != null) {
+            o.mismatch = compare("Matcher", m, expected, nested);
+        }
+
+        seq = new CountingSequence(input, limit);
+        start = System.nanoTime();
+        Matcher lm = null;
+        try {
+            lm = linear.matcher(seq);
+            lm.matches();
+            o.linearSteps = seq.count;
+        } catch (OverBudget e) {
+            lm = null;
+            o.linearSteps = -1;
+        }
+        o.linearNanos = System.nanoTime() - start;
+        if (o.mismatch == null && o.javaSteps >= 0 && lm != null) {
+            o.mismatch = compare("LINEAR_TIME Matcher", lm, expected, nested);
+        }
+        if (o.mismatch == null && m != null && lm != null && m.matches()) {
+            // both engines agree on every group
+            o.mismatch = compare("LINEAR_TIME Matcher", lm, groups(m), new boolean[nested.length]);
+        }
+        return o;
+    }
+
+    private static String[] groups(Matcher m) {
+        String[] groups = new String[m.groupCount() + 1];
+        for (int g = 0; g < groups.length; g++) {
+            groups[g] = m.group(g);
+        }
+        return groups;
+    }
+
+    private static String compare(String engine, Matcher m, String[] expected, boolean[] skip) {
+        if (m.matches() != (expected != null)) {
+            return engine + ".matches is " + m.matches();
+        }
+        for (int g = 0; expected != null && g < expected.length; g++) {
+            if (!skip[g] && !Objects.equals(expected[g], m.group(g))) {
+                return engine + ".group(" + g + ") is " + m.group(g) + " instead of " + expected[g];
+            }
+        }
+        return null;
+    }
+
+    /* Marks the groups that lie inside a repeated group */
+    private static void markNested(Pattern.GroupNode g, boolean inLoop, boolean[] nested) {
+        for (Pattern.BaseNode child : g.children) {
+            if (child instanceof Pattern.GroupNode) {
+                Pattern.GroupNode group = (Pattern.GroupNode) child;
+                nested[group.number] = inLoop;
+                markNested(group, inLoop || group.mod.isRepeated(), nested);
+            }
+        }
+    }
+
+    /*
+     * Worst case corpus, one case per line as pattern, input and the steps
+     * java.util.regex and the backtracking Matcher took when the case was
+     * recorded, separated by tabs. Lines starting with # are comments.
+     */
+    static List<String[]> readCorpus(InputStream in) throws IOException {
+        List<String[]> cases = new ArrayList<>();
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                cases.add(line.split("\t", -1));
+            }
+        }
+        return cases;
+    }
+
+    static String corpusLine(Outcome o) {
+        return o.pattern + '\t' + o.input + '\t' + o.javaSteps + '\t' + o.treeSteps;
+    }
+}
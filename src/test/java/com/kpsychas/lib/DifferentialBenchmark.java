@@ -0,0 +1,111 @@
+package com.kpsychas.lib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs random cases against java.util.regex, prints the work and time of
+ * both libraries and keeps the slowest cases in the worst case corpus.
+ * Run after "mvn test-compile" with
+ * java -cp target/classes:target/test-classes com.kpsychas.lib.DifferentialBenchmark [CASES [CORPUS]]
+ *
+ * Cases the backtracking Matcher finishes within budget are ranked by its
+ * steps per character of input and kept with their step counts. A few
+ * cases over budget are kept after them to show where backtracking blows
+ * up. Existing corpus entries are run again and compete with the new ones.
+ */
+public class DifferentialBenchmark {
+    private static final long LIMIT = 1 << 20;
+    private static final int MAX_INPUT = 40;
+    private static final int KEEP = 24;
+    private static final int KEEP_OVER = 8;
+
+    public static void main(String[] args) throws IOException, PatternSyntaxException {
+        int cases = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+        Path corpus = Paths.get((args.length > 1) ? args[1] : "src/test/resources/com/kpsychas/lib/worst-cases.txt");
+
+        long seed = System.nanoTime();
+        Differential d = new Differential(seed);
+        List<Differential.Outcome> outcomes = new ArrayList<>();
+        if (Files.exists(corpus)) {
+            try (InputStream in = Files.newInputStream(corpus)) {
+                for (String[] c : Differential.readCorpus(in)) {
+                    outcomes.add(Differential.run(c[0], c[1], LIMIT));
+                }
+            }
+        }
+        for (int i = 0; i < cases; i++) {
+            outcomes.add(Differential.run(d.pattern(), d.input(MAX_INPUT), LIMIT));
+        }
+
+        long chars = 0;
+        long[] steps = new long[4], nanos = new long[4], over = new long[4];
+        int mismatches = 0;
+        for (Differential.Outcome o : outcomes) {
+            chars += o.input.length();
+            add(0, o.javaSteps, o.javaNanos, steps, nanos, over);
+            add(1, o.matchSteps, o.matchNanos, steps, nanos, over);
+            add(2, o.treeSteps, o.treeNanos, steps, nanos, over);
+            add(3, o.linearSteps, o.linearNanos, steps, nanos, over);
+            if (o.mismatch != null) {
+                mismatches++;
+                System.out.println("Mismatch: " + o.pattern + " on " + o.input + ": " + o.mismatch);
+            }
+        }
+
+        System.out.println(outcomes.size() + " cases, seed " + seed + ", " + mismatches + " mismatches");
+        System.out.printf("  %-24s %14s %14s %12s%n", "", "steps/char", "ns/char", "over budget");
+        String[] names = {"java.util.regex", "Pattern.matches", "Matcher", "Matcher LINEAR_TIME"};
+        for (int k = 0; k < names.length; k++) {
+            System.out.printf("  %-24s %14.2f %14.2f %12d%n", names[k],
+                    (double) steps[k] / chars, (double) nanos[k] / chars, over[k]);
+        }
+
+        outcomes.sort(Comparator.comparingDouble(DifferentialBenchmark::cost).reversed());
+        List<String> lines = new ArrayList<>();
+        lines.add("# pattern, input, java.util.regex steps, Matcher steps, -1 is over budget");
+        lines.add("# written by DifferentialBenchmark, slowest cases first");
+        Set<String> seen = new HashSet<>();
+        int kept = 0, keptOver = 0;
+        for (Differential.Outcome o : outcomes) {
+            if (o.treeSteps >= 0 && kept < KEEP && o.mismatch == null && seen.add(o.pattern + '\t' + o.input)) {
+                lines.add(Differential.corpusLine(o));
+                kept++;
+            }
+        }
+        for (Differential.Outcome o : outcomes) {
+            if (o.treeSteps < 0 && keptOver < KEEP_OVER && o.mismatch == null && seen.add(o.pattern + '\t' + o.input)) {
+                lines.add(Differential.corpusLine(o));
+                keptOver++;
+            }
+        }
+        Files.write(corpus, lines, StandardCharsets.UTF_8);
+
+        System.out.println("Slowest cases, kept in " + corpus + ":");
+        for (String line : lines.subList(2, Math.min(lines.size(), 12))) {
+            System.out.println("  " + line);
+        }
+    }
+
+    private static void add(int k, long s, long ns, long[] steps, long[] nanos, long[] over) {
+        if (s < 0) {
+            over[k]++;
+        } else {
+            steps[k] += s;
+            nanos[k] += ns;
+        }
+    }
+
+    private static double cost(Differential.Outcome o) {
+        return (double) o.treeSteps / (o.input.length() + 1);
+    }
+}
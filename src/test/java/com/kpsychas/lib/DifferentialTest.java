@@ -0,0 +1,77 @@
+package com.kpsychas.lib;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Compares matches and groups with java.util.regex, see Differential.
+ */
+class DifferentialTest {
+    private static final long LIMIT = 1 << 20;
+    private static final long CORPUS_LIMIT = 1 << 14;
+
+    @Test
+    void randomTest() {
+        Differential d = new Differential(20170305);
+        for (int i = 0; i < 3000; i++) {
+            String p = d.pattern();
+            String s = d.input(12);
+            try {
+                check(Differential.run(p, s, LIMIT));
+            } catch (PatternSyntaxException e) {
+                fail(e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    void corpusTest() {
+        try (InputStream in = DifferentialTest.class.getResourceAsStream("worst-cases.txt")) {
+            assertNotNull(in);
+            List<String[]> cases = Differential.readCorpus(in);
+            assertTrue(cases.size() > 0);
+            int finished = 0;
+            for (String[] c : cases) {
+                // cases that ran over budget when recorded are only run
+                // long enough to check the linear engines
+                long recorded = Long.parseLong(c[3]);
+                long limit = Math.max(CORPUS_LIMIT, 2 * Math.max(recorded, Long.parseLong(c[2])) + 1);
+                Differential.Outcome o = Differential.run(c[0], c[1], limit);
+                check(o);
+                if (recorded >= 0) {
+                    // the backtracking Matcher must not get slower than when recorded
+                    assertTrue(o.treeSteps >= 0 && o.treeSteps <= 2 * recorded,
+                            c[0] + " on " + c[1] + " took " + o.treeSteps + " steps instead of " + recorded);
+                    finished++;
+                } else {
+                    // a case kept for its blowup that now finishes needs its
+                    // steps recorded to be guarded like the others
+                    assertTrue(o.treeSteps < 0,
+                            c[0] + " on " + c[1] + " now takes " + o.treeSteps + " steps, refresh the corpus");
+                }
+            }
+            assertTrue(2 * finished > cases.size(), "most corpus cases should have recorded steps");
+        } catch (IOException | PatternSyntaxException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /* Fails on a mismatch or if an engine that should be linear is not */
+    private static void check(Differential.Outcome o) {
+        if (o.mismatch != null) {
+            fail(o.pattern + " on " + o.input + ": " + o.mismatch);
+        }
+        long bound = (o.pattern.length() + 4L) * (o.input.length() + 1);
+        assertTrue(o.matchSteps >= 0 && o.matchSteps <= bound,
+                o.pattern + " on " + o.input + ": Pattern.matches took " + o.matchSteps + " steps");
+        assertTrue(o.linearSteps >= 0 && o.linearSteps <= bound,
+                o.pattern + " on " + o.input + ": LINEAR_TIME took " + o.linearSteps + " steps");
+    }
+}
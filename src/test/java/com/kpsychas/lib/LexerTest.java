@@ -0,0 +1,96 @@
+package com.kpsychas.lib;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.fail;
+
+class LexerTest {
+    @Test
+    void longestMatchTest() {
+        try {
+            Lexer l = Lexer.compile("[a-z]+", "[0-9]+", "[^a-z0-9]");
+            int[] tokens = new int[30];
+            int n = l.tokenize("abc 123 x9", 0, tokens);
+            assertEquals(6, n);
+            assertArrayEquals(new int[]{0, 0, 3, 2, 3, 4, 1, 4, 7, 2, 7, 8, 0, 8, 9, 1, 9, 10},
+                    Arrays.copyOf(tokens, 3 * n));
+        } catch (PatternSyntaxException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void priorityTest() {
+        try {
+            // keywords listed before identifiers win ties of equal length
+            Lexer l = Lexer.compile("if", "[a-z]+", "[^a-z]");
+            int[] tokens = new int[9];
+            int n = l.tokenize("if iff", 0, tokens);
+            assertEquals(3, n);
+            assertArrayEquals(new int[]{0, 0, 2, 2, 2, 3, 1, 3, 6}, tokens);
+        } catch (PatternSyntaxException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void stopTest() {
+        try {
+            Lexer l = Lexer.compile("(ab)+", "a");
+            int[] tokens = new int[6];
+            // stops when the array is full
+            assertEquals(2, l.tokenize("ababaabab", 0, tokens));
+            assertEquals(5, tokens[5]);
+            assertEquals(1, l.tokenize("ababaabab", tokens[5], tokens));
+            assertArrayEquals(new int[]{0, 5, 9}, Arrays.copyOf(tokens, 3));
+            // stops when no token matches
+            assertEquals(1, l.tokenize("abb", 0, tokens));
+            assertEquals(2, tokens[2]);
+        } catch (PatternSyntaxException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void syntaxTest() {
+        try {
+            Lexer.compile("a", "[b");
+            fail("Pattern: [b should not be valid");
+        } catch (PatternSyntaxException e) {
+            /* Test fails only is there is no exception */
+        }
+    }
+
+    @Test
+    void stateLimitTest() {
+        try {
+            StringBuilder sb = new StringBuilder("[ab]*a");
+            for (int i = 0; i < 16; i++) {
+                sb.append("[ab]");
+            }
+            Lexer.compile(sb.toString());
+            fail("Pattern: " + sb + " should need too many states");
+        } catch (IllegalArgumentException e) {
+            /* Test fails only is there is no exception */
+        } catch (PatternSyntaxException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void unicodeTest() {
+        try {
+            Lexer l = Lexer.compile("[\u03b1-\u03c9]+", "\ud83d\ude00", "[^\u03b1-\u03c9]");
+            int[] tokens = new int[12];
+            int n = l.tokenize("\u03b1\u03b2 \ud83d\ude00\u00e9", 0, tokens);
+            assertEquals(4, n);
+            assertArrayEquals(new int[]{0, 0, 2, 2, 2, 3, 1, 3, 5, 2, 5, 6}, tokens);
+        } catch (PatternSyntaxException e) {
+            fail(e.getMessage());
+        }
+    }
+}
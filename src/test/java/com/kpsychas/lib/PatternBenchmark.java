@@ -0,0 +1,257 @@
+package com.kpsychas.lib;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Simple throughput benchmarks, run with
+ * java -cp target/classes:target/test-classes com.kpsychas.lib.PatternBenchmark
+ *
+ * Every case is warmed up before it is timed and all cases run in the same
+ * JVM, so call sites shared by several input types see all of them.
+ */
+public class PatternBenchmark {
+    private static final int WARMUP = 3;
+    private static final int RUNS = 5;
+
+    private static volatile boolean sink;
+
+    public static void main(String[] args) throws PatternSyntaxException {
+        inputTypes();
+        search();
+        quantifiers();
+        captures();
+        classes();
+        compile();
+        bulkFind();
+        keystrokes();
+    }
+
+    /* Pattern.matches over the same text held in different input types */
+    static void inputTypes() throws PatternSyntaxException {
+        Pattern p = Pattern.compile("(Move([KQRBN]?[a-h][1-8])+)*End");
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 1 << 20) {
+            sb.append("Movee4e5MoveNf3Nc6MoveBb5a6");
+        }
+        sb.append("End");
+
+        final String s = sb.toString();
+        final char[] chars = s.toCharArray();
+        final byte[] bytes = s.getBytes(StandardCharsets.ISO_8859_1);
+        final CharBuffer heap = CharBuffer.wrap(chars);
+        final CharBuffer view = CharBuffer.wrap(s);
+        long n = s.length();
+
+        System.out.println("Input types, " + n + " characters:");
+        bench("String", n, () -> sink = p.matches(s));
+        bench("StringBuilder", n, () -> sink = p.matches(sb));
+        bench("CharBuffer (array)", n, () -> sink = p.matches(heap));
+        bench("CharBuffer (view)", n, () -> sink = p.matches(view));
+        bench("char[]", n, () -> sink = p.matches(chars, 0, chars.length));
+        bench("byte[]", n, () -> sink = p.matches(bytes, 0, bytes.length));
+    }
+
+    /* Pattern.find against trying Pattern.matches at every position */
+    static void search() throws PatternSyntaxException {
+        Pattern p = Pattern.compile("(Move([KQRBN]?[a-h][1-8])+)*End");
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 1 << 15) {
+            sb.append("Movee4e5MoveNf3Nc6MoveBb5a6");
+        }
+        // every attempt runs until the x, only End at the very end matches
+        sb.append("xEnd");
+        final String s = sb.toString();
+        long n = s.length();
+
+        System.out.println("Search for a suffix anchored match, " + n + " characters:");
+        bench("find", n, () -> sink = p.find(s) >= 0);
+        bench("matches at every index", n, () -> {
+            int i = 0;
+            while (i < s.length() && !p.matches(s, i)) i++;
+            sink = i < s.length();
+        });
+    }
+
+    /* Greedy against reluctant repetition when the first End ends the match */
+    static void quantifiers() throws PatternSyntaxException {
+        Pattern greedy = Pattern.compile("Move[^]*End");
+        Pattern lazy = Pattern.compile("Move[^]*?End");
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 1 << 20) {
+            sb.append("Movee4e5MoveNf3Nc6End");
+        }
+        final String s = sb.toString();
+        long n = s.length();
+
+        // both scan the whole text, the greedy one ends at the last End in
+        // a single match while the lazy one ends every game at its own End
+        System.out.println("Find every game, " + n + " characters:");
+        bench("greedy find", n, () -> sink = count(greedy.matcher(s)) > 0);
+        bench("lazy find", n, () -> sink = count(lazy.matcher(s)) > 0);
+
+        // the backtracking matcher recurses on every character, keep it short
+        final String t = s.substring(0, 1 << 12);
+        long m = t.length();
+        System.out.println("Matcher groups, " + m + " characters:");
+        bench("greedy group", m, () -> sink = greedy.matcher(t).group().isEmpty());
+        bench("lazy group", m, () -> sink = lazy.matcher(t).group().isEmpty());
+    }
+
+    /* Matcher groups from the backtracking matcher and from LINEAR_TIME */
+    static void captures() throws PatternSyntaxException {
+        Pattern tree = Pattern.compile("(Move([KQRBN]?[a-h][1-8])+)*End");
+        Pattern linear = Pattern.compile("(Move([KQRBN]?[a-h][1-8])+)*End", Pattern.LINEAR_TIME);
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 1 << 12) {
+            sb.append("Movee4e5MoveNf3Nc6MoveBb5a6");
+        }
+        sb.append("End");
+        final String s = sb.toString();
+        long n = s.length();
+
+        System.out.println("Matcher groups, " + n + " characters:");
+        bench("backtracking", n, () -> sink = tree.matcher(s).group(2).isEmpty());
+        bench("linear time", n, () -> sink = linear.matcher(s).group(2).isEmpty());
+    }
+
+    /* Class tests answered by the ASCII bit map and by the inversion list */
+    static void classes() throws PatternSyntaxException {
+        Pattern p = Pattern.compile("([a-z\u03b1-\u03c9\ud83d\ude00-\ud83d\ude4f]+ )*End");
+        StringBuilder ascii = new StringBuilder();
+        StringBuilder greek = new StringBuilder();
+        StringBuilder emoji = new StringBuilder();
+        while (ascii.length() < 1 << 20) {
+            ascii.append("logos ");
+            greek.append("\u03bb\u03bf\u03b3\u03bf\u03c2 ");
+            emoji.append("\ud83d\ude00\ud83d\ude02\ud83d\ude04 ");
+        }
+        final String a = ascii.append("End").toString();
+        final String g = greek.append("End").toString();
+        final String e = emoji.append("End").toString();
+
+        System.out.println("Character classes, " + a.length() + " characters:");
+        bench("ASCII", a.length(), () -> sink = p.matches(a));
+        bench("Greek", g.length(), () -> sink = p.matches(g));
+        bench("surrogate pairs", e.length(), () -> sink = p.matches(e));
+    }
+
+    /* Compiling many rules one by one and with Pattern.compileAll */
+    static void compile() {
+        final List<String> rules = new ArrayList<>();
+        long n = 0;
+        for (int i = 0; i < 100000; i++) {
+            String rule = "rule" + i + "([a-z]+[0-9]*)?[^ ]+ (" + (char) ('a' + i % 26) + "[A-Fa-f0-9]*)+End";
+            rules.add(rule);
+            n += rule.length();
+        }
+
+        System.out.println("Compile " + rules.size() + " patterns, " + n + " characters:");
+        bench("compile", n, () -> {
+            try {
+                for (String rule : rules) {
+                    sink = Pattern.compile(rule).flags() == 0;
+                }
+            } catch (PatternSyntaxException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        bench("compileAll", n, () -> {
+            try {
+                sink = Pattern.compileAll(rules).isEmpty();
+            } catch (PatternSyntaxException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    /* Every match of a text through Matcher.find and through Pattern.findAll */
+    static void bulkFind() throws PatternSyntaxException {
+        Pattern p = Pattern.compile("[KQRBN]?[a-h][1-8]");
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 1 << 20) {
+            sb.append("Movee4e5MoveNf3Nc6MoveBb5a6");
+        }
+        final String s = sb.toString();
+        final IntBuffer out = ByteBuffer.allocateDirect(4 * 2 * 4096).asIntBuffer();
+        long n = s.length();
+
+        System.out.println("Find all matches, " + n + " characters:");
+        bench("Matcher.find", n, () -> {
+            Matcher m = p.matcher(s);
+            int count = 0;
+            while (m.find()) count++;
+            sink = count > 0;
+        });
+        bench("findAll", n, () -> {
+            int count = 0, from = 0, found;
+            do {
+                out.clear();
+                found = p.findAll(s, from, out);
+                count += found;
+                if (found > 0) {
+                    int start = out.get(2 * found - 2);
+                    int end = out.get(2 * found - 1);
+                    from = end == start ? end + 1 : end;
+                }
+            } while (found == 4096);
+            sink = count > 0;
+        });
+    }
+
+    /* Checking the input after every typed character, from scratch and incrementally */
+    static void keystrokes() throws PatternSyntaxException {
+        Pattern p = Pattern.compile("(Move([KQRBN]?[a-h][1-8])+)*");
+        StringBuilder sb = new StringBuilder();
+        // matching every prefix again is quadratic, keep it short
+        while (sb.length() < 1 << 10) {
+            sb.append("Movee4e5MoveNf3Nc6MoveBb5a6");
+        }
+        final String s = sb.toString();
+        final IncrementalMatcher m = p.incrementalMatcher();
+        long n = s.length();
+
+        System.out.println("Check every keystroke, " + n + " characters:");
+        bench("Matcher on every prefix", n, () -> {
+            int matched = 0;
+            for (int i = 1; i <= s.length(); i++) {
+                Matcher whole = p.matcher(s.subSequence(0, i));
+                if (whole.end() == i) matched++;
+            }
+            sink = matched > 0;
+        });
+        bench("IncrementalMatcher", n, () -> {
+            m.reset();
+            int matched = 0;
+            for (int i = 0; i < s.length(); i++) {
+                if (m.append(s.charAt(i)).isMatched()) matched++;
+            }
+            sink = matched > 0;
+        });
+    }
+
+    /* Runs r and prints the best throughput in characters per second */
+    static void bench(String name, long chars, Runnable r) {
+        for (int i = 0; i < WARMUP; i++) {
+            r.run();
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            r.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.printf("  %-24s %10.2f Mchars/s%n", name, chars * 1e3 / best);
+    }
+
+    /* Number of matches left for m.find() */
+    private static int count(Matcher m) {
+        int count = 0;
+        while (m.find()) count++;
+        return count;
+    }
+}
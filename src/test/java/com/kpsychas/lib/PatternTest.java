@@ -2,7 +2,19 @@ package com.kpsychas.lib;
 
 import org.junit.jupiter.api.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.fail;
@@ -83,14 +95,219 @@ class PatternTest {
         }
     }
 
+    @Test
+    void prefilterTest() {
+        Pattern p;
+        try {
+            p = Pattern.compile("(Move([KQRBN]?[a-h][1-8])+)*End");
+            assertEquals("End", p.program.required);
+            assertEquals(3, p.program.minLength);
+            assertEquals(-1, p.program.maxLength);
+            assertTrue(p.program.firstChars.contains('M'));
+            assertTrue(p.program.firstChars.contains('E'));
+            assertFalse(p.program.firstChars.contains('e'));
+            assertFalse(p.matches("Movee4e5MoveNf3Nc6MoveBb5a6En"));
+            assertFalse(p.matches("Movee4"));
+            assertFalse(p.matcher("Movee4e5").matches());
+
+            p = Pattern.compile("1(spam)?2");
+            assertEquals("1", p.program.required);
+            assertEquals(2, p.program.minLength);
+            assertEquals(6, p.program.maxLength);
+            assertTrue(p.matches("111spam222", 2));
+            assertFalse(p.matches("111spam222", 3));
+
+            p = Pattern.compile("xa+b(cd)+");
+            assertEquals("xa", p.program.required);
+            p = Pattern.compile("a*[bc]?");
+            assertEquals(0, p.program.minLength);
+            assertEquals(null, p.program.firstChars);
+            assertEquals(null, p.program.required);
+            assertTrue(p.matches(""));
+
+            // the prefilter reads a bounded part of the input, so matching
+            // at every position takes linear time
+            char[] a = new char[20000];
+            Arrays.fill(a, 'a');
+            for (String s : new String[]{"a[0-9]*End", "ax?End"}) {
+                p = Pattern.compile(s);
+                assertEquals("End", p.program.required);
+                Differential.CountingSequence seq = new Differential.CountingSequence(new String(a), Long.MAX_VALUE);
+                for (int i = 0; i < a.length; i++) {
+                    assertFalse(p.matches(seq, i));
+                }
+                assertTrue(seq.count < 10L * a.length, s + " read " + seq.count + " characters");
+            }
+        } catch (PatternSyntaxException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void caseInsensitiveTest() {
+        Pattern p;
+        try {
+            p = Pattern.compile("(Move([KQRBN]?[a-h][1-8])+)*End", Pattern.CASE_INSENSITIVE);
+            assertEquals(Pattern.CASE_INSENSITIVE, p.flags());
+            assertTrue(p.matches("moveE4E5movenf3NC6END"));
+            assertFalse(p.matches("moveE9end"));
+            p = Pattern.compile("[^a-c]x", Pattern.CASE_INSENSITIVE);
+            assertFalse(p.matches("Bx"));
+            assertTrue(p.matches("DX"));
+            p = Pattern.compile("1(spam)?2", Pattern.CASE_INSENSITIVE);
+            assertTrue(p.matches("111SpAm222", 2));
+            Matcher m = p.matcher("1SPAM2");
+            assertEquals("SPAM", m.group(1));
+            p = Pattern.compile("End");
+            assertFalse(p.matches("END"));
+            // roman numerals have cases but are not letters
+            p = Pattern.compile("\u2160x", Pattern.CASE_INSENSITIVE);
+            assertTrue(p.matches("\u2170X"));
+            p = Pattern.compile("[\u2160]x", Pattern.CASE_INSENSITIVE);
+            assertTrue(p.matches("\u2170X"));
+            // folding is symmetric, long s and the Kelvin sign lower to s
+            // and k, which do not map back to them
+            p = Pattern.compile("\u017f\u212a", Pattern.CASE_INSENSITIVE);
+            assertTrue(p.matches("sk"));
+            assertTrue(p.matches("SK"));
+            p = Pattern.compile("s[k]", Pattern.CASE_INSENSITIVE);
+            assertTrue(p.matches("\u017f\u212a"));
+            p = Pattern.compile("[a-z]+", Pattern.CASE_INSENSITIVE);
+            assertTrue(p.matches("\u017f\u212a"));
+        } catch (PatternSyntaxException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void inputTypeTest() {
+        Pattern p = null;
+        try {
+            p = Pattern.compile("[A-Fghi12-9]*End");
+            char[] chars = "xxhi5Endxx".toCharArray();
+            byte[] bytes = "xxhi5Endxx".getBytes(StandardCharsets.ISO_8859_1);
+            assertTrue(p.matches(chars, 2, 6));
+            assertFalse(p.matches(chars, 2, 5));
+            assertFalse(p.matches(chars, 1, 7));
+            assertTrue(p.matches(bytes, 2, 6));
+            assertFalse(p.matches(bytes, 2, 5));
+            assertTrue(p.matches(CharBuffer.wrap(chars, 2, 6)));
+            assertTrue(p.matches(CharBuffer.wrap("hi5End")));
+            assertTrue(p.matches(new StringBuilder("hi5End")));
+            assertEquals("hi5End", p.matcher(chars, 2, 8).group());
+            assertEquals("hi5End", p.matcher(bytes, 2, 8).group());
+            assertFalse(p.matcher(bytes, 3, 4).matches());
+            // the matcher reads the array, bytes above 0x7f are Latin-1 letters
+            Matcher m = p.matcher(bytes, 2, 8);
+            bytes[2] = (byte) 0xe9;
+            assertFalse(m.matches());
+            assertEquals("\u00e9i5End", Pattern.compile("[\u00e0-\u00ff]i5End").matcher(bytes, 2, 6).group());
+        } catch (PatternSyntaxException e) {
+            fail(e.getMessage());
+        }
+        try {
+            p.matches(new char[4], 2, 3);
+            fail("Given range should not be valid");
+        } catch (IndexOutOfBoundsException e) {
+            /* Test fails only is there is no exception */
+        }
+    }
+
+    @Test
+    void findTest() {
+        Pattern p;
+        try {
+            p = Pattern.compile("(xyz)?y");
+            assertEquals(0, p.find("xyzy"));
+            assertEquals(1, p.find("ayzy"));
+            assertEquals(3, p.find("xyzy", 2));
+            assertEquals(-1, p.find("xyzx", 2));
+            p = Pattern.compile("(Move([KQRBN]?[a-h][1-8])+)*End");
+            assertEquals(4, p.find("MoveMovee4e5MoveNf3Nc6End"));
+            assertEquals(-1, p.find("Movee4e5MoveNf3Nc6En"));
+            p = Pattern.compile("[0-9]+");
+            assertEquals(5, p.find("Zero 0"));
+            assertEquals(-1, p.find("None"));
+            p = Pattern.compile("a*");
+            assertEquals(3, p.find("bbb", 3));
+        } catch (PatternSyntaxException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void matcherFindTest() {
+        Pattern p;
+        Matcher m;
+        try {
+            p = Pattern.compile("[0-9]+");
+            m = p.matcher("a1b22c333");
+            assertTrue(m.find());
+            assertEquals(1, m.start());
+            assertEquals(2, m.end());
+            assertTrue(m.find());
+            assertEquals("22", m.group());
+            assertTrue(m.find());
+            assertEquals(6, m.start());
+            assertEquals(9, m.end());
+            assertFalse(m.find());
+            try {
+                m.start();
+                fail("There should be no match");
+            } catch (IllegalStateException e) {
+                /* Test fails only is there is no exception */
+            }
+
+            // matches is made again from the start after find
+            m = p.matcher("12a");
+            assertTrue(m.find());
+            assertFalse(m.find());
+            assertTrue(m.matches());
+            assertEquals("12", m.group());
+
+            // find takes the match from the linear engine, matching from
+            // the start with the tree would recurse once per character
+            char[] a = new char[100000];
+            Arrays.fill(a, 'a');
+            p = Pattern.compile("[a-z]*x");
+            m = p.matcher(new String(a) + "x");
+            assertTrue(m.find());
+            assertEquals(0, m.start());
+            assertEquals(a.length + 1, m.end());
+            p = Pattern.compile("(a*)*b");
+            m = p.matcher("xaab");
+            assertTrue(m.find());
+            assertEquals("aab", m.group());
+            assertEquals("", m.group(1));
+        } catch (PatternSyntaxException e) {
+            fail(e.getMessage());
+        }
+    }
+
     @Test
     void backtrackTest() {
         Pattern p;
+        Matcher m;
         try {
             p = Pattern.compile("(a*b)+ab");
             assertTrue(p.matches("aabaabab"));
             p = Pattern.compile("(a*b)+[^a]+");
             assertFalse(p.matches("aabaabab"));
+
+            // giving up a repetition retries the rest of the group
+            p = Pattern.compile("(a*a)+b?a");
+            m = p.matcher("aaa");
+            assertEquals("aaa", m.group());
+            assertEquals("aa", m.group(1));
+            p = Pattern.compile("a+(a??b?)+");
+            m = p.matcher("aaa");
+            assertEquals("aaa", m.group());
+            assertEquals("", m.group(1));
+            // a lazy group may repeat empty
+            p = Pattern.compile("(bb??a+)??a*(a?)");
+            m = p.matcher("a");
+            assertNull(m.group(1));
+            assertEquals("", m.group(2));
         } catch (PatternSyntaxException e) {
             fail(e.getMessage());
         }
@@ -112,11 +329,79 @@ class PatternTest {
             assertTrue(p.matches("acb")); // [^] Matches with all characters
             p = Pattern.compile("a[^]*b");
             assertTrue(p.matches("ab"));
+            p = Pattern.compile("a*");
+            assertTrue(p.matches(""));
+            p = Pattern.compile("a()");
+            assertTrue(p.matches("a"));
+        } catch (PatternSyntaxException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void compactTest() {
+        Pattern p, q;
+        try {
+            p = Pattern.compile("(Move([KQRBN]?[a-h][1-8])+)*End");
+            q = Pattern.compile("(Move([KQRBN]?[a-h][1-8])+)*End");
+            assertSame(p.program, q.program);
+            p = Pattern.compile("[a-h]x");
+            q = Pattern.compile("y[a-h]*");
+            assertSame(p.program.classes[0], q.program.classes[0]);
+
+            p = Pattern.compile("(Move([KQRBN]?[a-h][1-8])+)*End");
+            long compact = p.footprint();
+            assertTrue(compact <= 640, "footprint " + compact);
+            assertTrue(2 * compact < hashSetTreeFootprint(Pattern.parse("(Move([KQRBN]?[a-h][1-8])+)*End", 0)));
+            p.matcher("MoveNf3End").matches();
+            // parse tree is retained only after a Matcher needs it
+            assertTrue(compact < p.footprint() - compact);
+
+            // classes of many characters took one boxed entry per character
+            p = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+            compact = p.footprint();
+            assertTrue(10 * compact < hashSetTreeFootprint(Pattern.parse("[A-Za-z_][A-Za-z0-9_]*", 0)),
+                    "footprint " + compact);
         } catch (PatternSyntaxException e) {
             fail(e.getMessage());
         }
     }
 
+    /*
+     * Estimated bytes of a node tree that keeps every range as a
+     * HashSet<Character>, the way patterns were kept before they were
+     * compiled to programs.
+     */
+    private static long hashSetTreeFootprint(Pattern.BaseNode node) {
+        if (node instanceof Pattern.GroupNode) {
+            Pattern.GroupNode g = (Pattern.GroupNode) node;
+            // node, ArrayList and its backing array
+            long size = Pattern.align(Pattern.OBJECT_HEADER + 3 * Pattern.REFERENCE) +
+                    Pattern.align(Pattern.OBJECT_HEADER + Pattern.REFERENCE + 8) +
+                    Pattern.align(Pattern.ARRAY_HEADER + Math.max(10, g.children.size()) * Pattern.REFERENCE);
+            for (Pattern.BaseNode child : g.children) {
+                size += hashSetTreeFootprint(child);
+            }
+            return size;
+        }
+        if (node instanceof Pattern.RangeNode) {
+            int[] ranges = ((Pattern.RangeNode) node).ranges;
+            int chars = 0;
+            for (int i = 0; i < ranges.length; i += 2) {
+                chars += ranges[i + 1] - ranges[i];
+            }
+            // node, HashSet, HashMap, table and one entry per character
+            int buckets = Integer.highestOneBit(Math.max(16, chars * 4 / 3) * 2 - 1);
+            return Pattern.align(Pattern.OBJECT_HEADER + 2 * Pattern.REFERENCE + 1) +
+                    Pattern.align(Pattern.OBJECT_HEADER + Pattern.REFERENCE) +
+                    Pattern.align(Pattern.OBJECT_HEADER + 3 * Pattern.REFERENCE + 4 * 4) +
+                    Pattern.align(Pattern.ARRAY_HEADER + buckets * Pattern.REFERENCE) +
+                    chars * Pattern.align(Pattern.OBJECT_HEADER + 3 * Pattern.REFERENCE + 4);
+        }
+        // literal with a boxed Character
+        return Pattern.align(Pattern.OBJECT_HEADER + 3 * Pattern.REFERENCE);
+    }
+
     @Test
     void multiTest() {
         Pattern p;
@@ -201,7 +486,12 @@ class PatternTest {
         assertTrue(m.matches());
         assertEquals(m.group(), "aabaaabb");
         assertEquals(m.group(1), "aaab");
+        assertEquals(m.group(2), "aaa");
+        assertEquals(m.group(3), "b");
         assertEquals(m.group(4), "");
+        assertEquals(4, m.groupCount());
+        assertEquals(3, m.start(2));
+        assertEquals(8, m.end(3));
         try {
             m.group(-1);
             fail("Given group should not be valid");
@@ -214,5 +504,308 @@ class PatternTest {
         } catch (IndexOutOfBoundsException e) {
             /* Test fails only is there is no exception */
         }
+        // groups are numbered by their opening parenthesis in both engines
+        // and a group that takes no part in the match is null
+        for (int flags : new int[]{0, Pattern.LINEAR_TIME}) {
+            try {
+                p = Pattern.compile("(x)?(a)", flags);
+                m = p.matcher("a");
+                assertTrue(m.matches());
+                assertNull(m.group(1));
+                assertEquals(-1, m.start(1));
+                assertEquals("a", m.group(2));
+                p = Pattern.compile("((a)(b))(c)", flags);
+                m = p.matcher("abc");
+                assertTrue(m.matches());
+                assertEquals("ab", m.group(1));
+                assertEquals("a", m.group(2));
+                assertEquals("b", m.group(3));
+                assertEquals("c", m.group(4));
+            } catch (PatternSyntaxException e) {
+                fail(e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    void lazyTest() {
+        Pattern p;
+        Matcher m;
+        try {
+            p = Pattern.compile("a+?b*?");
+            assertTrue(p.matches("aab"));
+            assertFalse(p.matches("b"));
+            p = Pattern.compile("(a??)(a*)");
+            m = p.matcher("aa");
+            assertTrue(m.matches());
+            assertEquals("", m.group(1));
+            assertEquals("aa", m.group(2));
+            p = Pattern.compile("([^]*?)([0-9]+)");
+            m = p.matcher("abc123");
+            assertTrue(m.matches());
+            assertEquals("abc", m.group(1));
+            assertEquals("123", m.group(2));
+            p = Pattern.compile("([^]*)([0-9]+)");
+            m = p.matcher("abc123");
+            assertTrue(m.matches());
+            assertEquals("abc12", m.group(1));
+            assertEquals("3", m.group(2));
+            p = Pattern.compile("(ab)+?(ab)*");
+            m = p.matcher("ababab");
+            assertTrue(m.matches());
+            assertEquals("ab", m.group(1));
+            assertEquals("ababab", m.group());
+        } catch (PatternSyntaxException e) {
+            fail(e.getMessage());
+        }
+        String[] sArray = {"a???", "a*?*", "a+??", "??a"};
+        for(String s: sArray) {
+            try {
+                p = Pattern.compile(s);
+                fail("Pattern: " + s + " should not be valid");
+            } catch (PatternSyntaxException e) {
+                /* Test fails only is there is no exception */
+            }
+        }
+    }
+
+    @Test
+    void linearTimeTest() {
+        Pattern p = null;
+        Matcher m;
+        try {
+            p = Pattern.compile("((a*)b)+([^a]+)()", Pattern.LINEAR_TIME);
+        } catch (PatternSyntaxException e) {
+            fail(e.getMessage());
+        }
+        m = p.matcher("aabaaabab");
+        assertFalse(m.matches());
+        m = p.matcher("aabaaabba");
+        assertTrue(m.matches());
+        assertEquals(m.group(), "aabaaabb");
+        assertEquals(m.group(1), "aaab");
+        assertEquals(m.group(2), "aaa");
+        assertEquals(m.group(3), "b");
+        assertEquals(m.group(4), "");
+        try {
+            m.group(5);
+            fail("Given group should not be valid");
+        } catch (IndexOutOfBoundsException e) {
+            /* Test fails only is there is no exception */
+        }
+        try {
+            p = Pattern.compile("(x)?(a+?)(a*)", Pattern.LINEAR_TIME);
+            m = p.matcher("aaa");
+            assertTrue(m.matches());
+            assertNull(m.group(1));
+            assertEquals("a", m.group(2));
+            assertEquals("aa", m.group(3));
+
+            // backtracking over the parse tree takes exponential time here
+            p = Pattern.compile("(a*)*(b)", Pattern.LINEAR_TIME);
+            char[] a = new char[10000];
+            Arrays.fill(a, 'a');
+            m = p.matcher(new String(a));
+            assertFalse(m.matches());
+            m = p.matcher(new String(a) + "b");
+            assertTrue(m.matches());
+            assertEquals("b", m.group(2));
+            // a loop is left after an empty repetition, as by the tree Matcher
+            m = p.matcher("aab");
+            assertTrue(m.matches());
+            assertEquals("", m.group(1));
+            p = Pattern.compile("(a*?)*b", Pattern.LINEAR_TIME);
+            m = p.matcher("aab");
+            assertTrue(m.matches());
+            assertEquals("", m.group(1));
+
+            p = Pattern.compile("[0-9]+", Pattern.LINEAR_TIME);
+            m = p.matcher("a12b345");
+            assertTrue(m.find());
+            assertEquals(1, m.start());
+            assertEquals("12", m.group());
+            assertTrue(m.find());
+            assertEquals("345", m.group());
+            assertFalse(m.find());
+        } catch (PatternSyntaxException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void unicodeTest() {
+        Pattern p;
+        Matcher m;
+        try {
+            p = Pattern.compile("caf\u00e9+ [\u03b1-\u03c9]+");
+            assertTrue(p.matches("caf\u00e9\u00e9 \u03bb\u03bf\u03b3"));
+            assertFalse(p.matches("cafe \u03bb"));
+            p = Pattern.compile("[^a]b");
+            assertTrue(p.matches("\u20acb"));
+            assertTrue(p.matches("\ud83d\ude00b")); // a surrogate pair is one character
+            assertTrue(p.matches(new char[]{'\ud83d', '\ude00', 'b'}, 0, 3));
+            p = Pattern.compile("\ud83d\ude00+[\ud83d\ude01-\ud83d\ude4f]");
+            assertTrue(p.matches("\ud83d\ude00\ud83d\ude00\ud83d\ude02"));
+            assertFalse(p.matches("\ud83d\ude00\ud83d\ude00"));
+            assertEquals(2, p.find("ab\ud83d\ude00\ud83d\ude4f"));
+            m = p.matcher("\ud83d\ude00\ud83d\ude4fz");
+            assertEquals("\ud83d\ude00\ud83d\ude4f", m.group());
+            p = Pattern.compile("([^\u0000-\uffff])", Pattern.LINEAR_TIME);
+            m = p.matcher("\ud83d\ude00");
+            assertEquals("\ud83d\ude00", m.group(1));
+            p = Pattern.compile("\u00e9t\u00e9", Pattern.CASE_INSENSITIVE);
+            assertTrue(p.matches("\u00c9T\u00c9"));
+            p = Pattern.compile("[!-/]+");
+            assertTrue(p.matches("#!"));
+        } catch (PatternSyntaxException e) {
+            fail(e.getMessage());
+        }
+        String[] sArray = {"a.b", "a|b", "a{2}", "$", "\ud83d", "a\ude00", "[a-\u00e9]", "[\u00e9-\u00e0]"};
+        for(String s: sArray) {
+            try {
+                p = Pattern.compile(s);
+                fail("Pattern: " + s + " should not be valid");
+            } catch (PatternSyntaxException e) {
+                /* Test fails only is there is no exception */
+            }
+        }
+    }
+
+    @Test
+    void compileAllTest() {
+        List<String> sources = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            sources.add("rule" + i + "[a-z]*");
+        }
+        try {
+            List<Pattern> patterns = Pattern.compileAll(sources);
+            assertEquals(sources.size(), patterns.size());
+            for (int i = 0; i < sources.size(); i++) {
+                assertTrue(patterns.get(i).matches("rule" + i + "x"));
+                // classes interned by different threads are shared
+                assertSame(patterns.get(0).program.classes[0], patterns.get(i).program.classes[0]);
+            }
+            // so are programs
+            List<Pattern> again = Pattern.compileAll(sources);
+            for (int i = 0; i < sources.size(); i++) {
+                assertSame(patterns.get(i).program, again.get(i).program);
+            }
+        } catch (PatternSyntaxException e) {
+            fail(e.getMessage());
+        }
+
+        sources.set(7, "rule7[a-z");
+        sources.set(150, "a**b");
+        sources.set(199, "(rule");
+        try {
+            Pattern.compileAll(sources);
+            fail("Patterns should not be valid");
+        } catch (PatternSyntaxException e) {
+            // the first error is thrown and all later ones are suppressed
+            assertEquals("rule7[a-z", e.getPattern());
+            assertEquals(9, e.getIndex());
+            Throwable[] others = e.getSuppressed();
+            assertEquals(2, others.length);
+            assertEquals("a**b", ((PatternSyntaxException) others[0]).getPattern());
+            assertEquals(2, ((PatternSyntaxException) others[0]).getIndex());
+            assertEquals("(rule", ((PatternSyntaxException) others[1]).getPattern());
+            assertEquals(5, ((PatternSyntaxException) others[1]).getIndex());
+        }
+    }
+
+    @Test
+    void findAllTest() {
+        try {
+            Pattern p = Pattern.compile("(Move)?([a-h][1-8])+");
+            String s = "Movee4e5 Nf3 Bb5a6 xMoveg1";
+            IntBuffer pairs = IntBuffer.allocate(16);
+            assertEquals(4, p.findAll(s, 0, pairs));
+            assertArrayEquals(new int[]{0, 8, 10, 12, 14, 18, 20, 26}, Arrays.copyOf(pairs.array(), 8));
+
+            // a full buffer stops the search, it goes on from the last end
+            pairs = IntBuffer.allocate(5);
+            assertEquals(2, p.findAll(s, 0, pairs));
+            assertEquals(1, pairs.remaining());
+            assertEquals(12, pairs.get(3));
+            pairs.clear();
+            assertEquals(2, p.findAll(s, 12, pairs));
+            assertEquals(14, pairs.get(0));
+
+            LongBuffer packed = ByteBuffer.allocateDirect(8 * 4).asLongBuffer();
+            assertEquals(3, p.findAll(s, 9, packed));
+            assertEquals((10L << 32) | 12, packed.get(0));
+            assertEquals((20L << 32) | 26, packed.get(2));
+
+            IntBuffer groups = IntBuffer.allocate(6 * 4);
+            assertEquals(4, p.findGroups(s, 0, groups));
+            assertArrayEquals(new int[]{0, 8, 0, 4, 6, 8, 10, 12, -1, -1, 10, 12}, Arrays.copyOf(groups.array(), 12));
+
+            // empty matches move on by one character
+            p = Pattern.compile("a*");
+            pairs = IntBuffer.allocate(16);
+            assertEquals(4, p.findAll("baab", 0, pairs));
+            assertArrayEquals(new int[]{0, 0, 1, 3, 3, 3, 4, 4}, Arrays.copyOf(pairs.array(), 8));
+
+            // resuming after an empty match starts one character past it
+            pairs = IntBuffer.allocate(2);
+            int from = 0, found = 0;
+            while (from <= 3 && p.findAll("bbb", from, pairs) == 1) {
+                assertEquals(from, pairs.get(0));
+                assertEquals(from, pairs.get(1));
+                from = pairs.get(1) == pairs.get(0) ? pairs.get(1) + 1 : pairs.get(1);
+                pairs.clear();
+                found++;
+            }
+            assertEquals(4, found);
+        } catch (PatternSyntaxException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void incrementalTest() {
+        try {
+            Pattern p = Pattern.compile("[1-9][0-9]*(x[1-9][0-9]*)?");
+            IncrementalMatcher m = p.incrementalMatcher();
+            assertFalse(m.isMatched());
+            assertTrue(m.hitEnd());
+            m.append("12");
+            assertTrue(m.isMatched());
+            assertTrue(m.hitEnd());
+            IncrementalMatcher.State s = m.snapshot();
+            m.append('x');
+            assertFalse(m.isMatched());
+            assertTrue(m.hitEnd());
+            m.append('0');
+            assertTrue(m.isDead());
+            assertFalse(m.hitEnd());
+
+            // backspace over the last two characters
+            m.restore(s);
+            assertEquals(2, m.length());
+            assertTrue(m.isMatched());
+            m.append("x34");
+            assertTrue(m.isMatched());
+            assertEquals(5, m.length());
+            assertFalse(m.reset().isMatched());
+
+            // a surrogate pair may arrive in two appends
+            p = Pattern.compile("a[\ud83d\ude00-\ud83d\ude4f]");
+            m = p.incrementalMatcher().append("a\ud83d");
+            assertFalse(m.isMatched());
+            assertFalse(m.isDead());
+            assertTrue(m.hitEnd());
+            m.append('\ude00');
+            assertTrue(m.isMatched());
+            assertFalse(m.hitEnd());
+            p = Pattern.compile("a[^b]");
+            m = p.incrementalMatcher().append("a\ud83d");
+            // an unpaired high surrogate is a character of its own so far
+            assertTrue(m.isMatched());
+            m.append('c');
+            assertTrue(m.isDead());
+        } catch (PatternSyntaxException e) {
+            fail(e.getMessage());
+        }
     }
-}
\ No newline at end of file
+}